@@ -4,11 +4,48 @@
  * Represents configuration parameters for an Iperfer client
  *
  * This record represents a configuration for an Iperfer client, including
- * the hostname of the server, the port number of the server,
- * and the test duration
+ * the hostname of the server, the port number of the server, the test
+ * duration, the warm-up period excluded from the statistics, the number of
+ * parallel streams, the transport, the file to transmit, if any, the target
+ * bitrate and burst size, the direction data flows in, the socket tuning
+ * options, the largest write size of a sweep and how progress is reported
  *
  * @param hostname   the hostname of the server to connect to
  * @param serverPort the port number of the server
  * @param time       the duration for the network test
+ * @param warmup     the warm-up period before the network test in seconds,
+ *                   excluded from the statistics
+ * @param parallel   the number of parallel streams to run
+ * @param nio        whether to use the NIO SocketChannel transport
+ * @param bufferSize the write size, request-response message size or UDP
+ *                   datagram size in bytes
+ * @param file       the file to transmit, or null to transmit from memory
+ * @param udp        whether to send UDP datagrams instead of a TCP stream
+ * @param rate       the target bitrate of a UDP test, or of a paced TCP
+ *                   test, in megabits per second, 0 for an unpaced TCP test
+ * @param burst      the largest number of bytes a paced TCP test sends at
+ *                   once
+ * @param direction  the direction data flows in during a TCP test
+ * @param options    the tuning options applied to every TCP socket
+ * @param sweepMax   the largest write size of a sweep, or 0 for no sweep
+ * @param report     the configuration for reporting progress
  */
-public record ClientConfig(String hostname, int serverPort, int time) {}
+public record ClientConfig(String hostname, int serverPort, int time,
+                           int warmup, int parallel, boolean nio,
+                           int bufferSize, String file, boolean udp,
+                           double rate, int burst, Direction direction,
+                           SocketOptions options, int sweepMax,
+                           ReportConfig report) {
+    /**
+     * Copies this configuration with a different write size
+     *
+     * @param bufferSize the write size in bytes
+     *
+     * @return the copied configuration
+     */
+    public ClientConfig withBufferSize(int bufferSize) {
+        return new ClientConfig(hostname, serverPort, time, warmup,
+                                parallel, nio, bufferSize, file, udp, rate,
+                                burst, direction, options, sweepMax, report);
+    }
+}
@@ -1,9 +1,22 @@
 import java.net.Socket;
 import java.net.ServerSocket;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * @author Mrigank Kumar
@@ -11,14 +24,45 @@ import java.io.OutputStream;
  * Utility class for handling socket connections and data transfer
  * This class provides static methods for creating sockets,
  * sending and receiving data over sockets, and closing sockets
+ * Errors creating sockets or accepting connections end the program, while
+ * errors on a connection are thrown as UncheckedIOExceptions, so that they
+ * only fail the test using that connection
  */
 public class ConnectionUtils {
-    // Buffer for storing data to be sent or received
-    private final static byte[] dataBuffer;
+    /**
+     * The header a client sends when it connects, announcing the test
+     *
+     * @param direction the direction data flows in
+     * @param time      the duration of the test in seconds
+     * @param warmup    the warm-up period excluded from the statistics in
+     *                  seconds
+     */
+    public record Header(Direction direction, int time, int warmup) {}
+
+    /**
+     * Wraps an error on a connection, to fail the test using it
+     *
+     * @param action what was being done when the error occurred
+     * @param e      the error
+     *
+     * @return the exception to throw
+     */
+    private static UncheckedIOException failure(String action,
+                                                IOException e) {
+        return new UncheckedIOException("Error " + action + ": "
+                                        + e.getMessage(), e);
+    }
 
-    // Initialize dataBuffer
-    static {
-        dataBuffer = new byte[Constants.CHUNK_SIZE.getValue()];
+    /**
+     * Reports an error on a connection and ends the program, for tests of
+     * a single connection run from the command line
+     *
+     * @param e the error
+     */
+    public final static void exit(UncheckedIOException e) {
+        e.getCause().printStackTrace();
+        System.err.println(e.getMessage());
+        System.exit(1);
     }
 
     /**
@@ -30,7 +74,14 @@ public class ConnectionUtils {
      */
     public final static Socket createSocket(ClientConfig config) {
         try {
-            Socket socket = new Socket();
+            // A channel's socket adaptor lets the NIO transport reach the
+            // underlying channel through Socket.getChannel()
+            Socket socket = config.nio()
+                ? SocketChannel.open().socket() : new Socket();
+
+            // buffer sizes must be set before connecting, so that the
+            // window scale is negotiated for them
+            configureSocket(socket, config.options());
             socket.connect(new InetSocketAddress(config.hostname(),
                                                  config.serverPort()));
             return socket;
@@ -52,7 +103,14 @@ public class ConnectionUtils {
      */
     public final static ServerSocket createSocket(ServerConfig config) {
         try {
-            ServerSocket socket = new ServerSocket();
+            // Sockets accepted by a channel's adaptor are backed by channels
+            ServerSocket socket = config.nio()
+                ? ServerSocketChannel.open().socket() : new ServerSocket();
+
+            // accepted sockets inherit the receive buffer size, which must
+            // be set before they connect
+            if (config.options().receiveBuffer() > 0)
+                socket.setReceiveBufferSize(config.options().receiveBuffer());
 
             socket.bind(new InetSocketAddress(config.listenPort()));
             return socket;
@@ -65,6 +123,28 @@ public class ConnectionUtils {
         return null;
     }
 
+    /**
+     * Applies the tuning options to the specified socket
+     *
+     * @param socket  the socket to configure
+     * @param options the tuning options to apply
+     */
+    public final static void configureSocket(Socket socket,
+                                             SocketOptions options) {
+        try {
+            if (options.sendBuffer() > 0)
+                socket.setSendBufferSize(options.sendBuffer());
+
+            if (options.receiveBuffer() > 0)
+                socket.setReceiveBufferSize(options.receiveBuffer());
+
+            if (options.noDelay())
+                socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            throw failure("configuring socket", e);
+        }
+    }
+
     /**
      * Accept a socket on the given server socket, and return the client socket
      *
@@ -94,9 +174,7 @@ public class ConnectionUtils {
             if (!socket.isClosed())
                 socket.close();
         } catch (IOException e) {
-            e.printStackTrace();
-            System.err.println("Error closing socket: " + e.getMessage());
-            System.exit(1);
+            throw failure("closing socket", e);
         }
     }
 
@@ -116,37 +194,478 @@ public class ConnectionUtils {
         }
     }
 
+    /**
+     * Sends the header announcing the test over the specified socket
+     *
+     * @param socket the socket for sending the header
+     * @param header the header to send
+     */
+    public final static void sendHeader(Socket socket, Header header) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * Integer.BYTES)
+            .putInt(Constants.HEADER_MAGIC.getValue())
+            .putInt(header.direction().ordinal())
+            .putInt(header.time())
+            .putInt(header.warmup());
+
+        try {
+            socket.getOutputStream().write(buffer.array());
+        } catch (IOException e) {
+            throw failure("sending header", e);
+        }
+    }
+
+    /**
+     * Receives the header announcing the test from the specified socket
+     *
+     * @param socket the socket for receiving the header
+     *
+     * @return the received header, or null if the connection was lost or
+     *         did not start with a valid header
+     */
+    public final static Header receiveHeader(Socket socket) {
+        try {
+            // DataInputStream does not buffer, so no test data is consumed
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            if (in.readInt() != Constants.HEADER_MAGIC.getValue())
+                return null;
+
+            int direction = in.readInt();
+            int time = in.readInt();
+            int warmup = in.readInt();
+
+            if (direction < 0 || direction >= Direction.values().length)
+                return null;
+
+            return new Header(Direction.values()[direction], time, warmup);
+        } catch (EOFException e) {
+            return null;
+        } catch (IOException e) {
+            throw failure("receiving header", e);
+        }
+    }
+
+    /**
+     * Shuts down the output of the specified socket, signalling the end of
+     * the data to the other end while still receiving from it
+     *
+     * @param socket the socket to shut down the output of
+     */
+    public final static void shutdownOutput(Socket socket) {
+        try {
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            throw failure("shutting down socket", e);
+        }
+    }
+
     /**
      * Sends data over the specified socket
      *
-     * @param socket the socket for sending data
+     * @param socket     the socket for sending data
+     * @param dataBuffer the buffer holding the data to be sent
      */
-    public final static void sendData(Socket socket) {
+    public final static void sendData(Socket socket, byte[] dataBuffer) {
         try {
             socket.getOutputStream().write(dataBuffer);
         } catch (IOException e) {
-            e.printStackTrace();
-            System.err.println("Error sending data: " + e.getMessage());
-            System.exit(1);
+            throw failure("sending data", e);
+        }
+    }
+
+    /**
+     * Sends part of a buffer over the specified socket
+     *
+     * @param socket     the socket for sending data
+     * @param dataBuffer the buffer holding the data to be sent
+     * @param length     the number of bytes from the start of the buffer
+     *                   to send
+     */
+    public final static void sendData(Socket socket, byte[] dataBuffer,
+                                      int length) {
+        try {
+            socket.getOutputStream().write(dataBuffer, 0, length);
+        } catch (IOException e) {
+            throw failure("sending data", e);
+        }
+    }
+
+    /**
+     * Receives exactly enough data from the specified socket to fill the
+     * buffer
+     *
+     * @param socket     the socket for receiving data
+     * @param dataBuffer the buffer to store the received data in
+     *
+     * @return true if the buffer was filled, false if the connection was
+     *         lost first
+     */
+    public final static boolean receiveFully(Socket socket,
+                                             byte[] dataBuffer) {
+        int received = 0;
+        int temp;
+
+        while (received < dataBuffer.length) {
+            temp = receiveData(socket, dataBuffer, received);
+
+            if (temp == -1)
+                return false;
+
+            received += temp;
+        }
+
+        return true;
+    }
+
+    /**
+     * Receives data from the specified socket into the buffer past the
+     * given offset
+     *
+     * @param socket     the socket for receiving data
+     * @param dataBuffer the buffer to store the received data in
+     * @param offset     the offset in the buffer to store the data at
+     *
+     * @return the size of the data received
+     */
+    private final static int receiveData(Socket socket, byte[] dataBuffer,
+                                         int offset) {
+        try {
+            return socket.getInputStream().read(dataBuffer, offset,
+                dataBuffer.length - offset);
+        } catch (IOException e) {
+            throw failure("receiving data", e);
         }
     }
 
     /**
      * Receives data from the specified socket
      *
-     * @param socket the socket for receiving data
+     * @param socket     the socket for receiving data
+     * @param dataBuffer the buffer to store the received data in
      *
      * @return the size of the data received
      */
-    public final static int receiveData(Socket socket) {
+    public final static int receiveData(Socket socket, byte[] dataBuffer) {
         try {
             return socket.getInputStream().read(dataBuffer);
+        } catch (IOException e) {
+            throw failure("receiving data", e);
+        }
+    }
+
+    /**
+     * Builds the views of a direct buffer that are gathered into a single
+     * write, so one syscall carries several buffers worth of data without
+     * allocating more memory
+     *
+     * @param buffer the direct buffer to send data from
+     *
+     * @return the views of the buffer to gather
+     */
+    public final static ByteBuffer[] gatherBuffers(ByteBuffer buffer) {
+        ByteBuffer[] buffers =
+            new ByteBuffer[Constants.NIO_GATHER_COUNT.getValue()];
+
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = buffer.duplicate();
+
+        return buffers;
+    }
+
+    /**
+     * Sends data over the specified channel with a gathering write
+     *
+     * @param channel the channel for sending data
+     * @param buffers the buffers holding the data to be sent
+     *
+     * @return the number of bytes sent
+     */
+    public final static long sendData(SocketChannel channel,
+                                      ByteBuffer[] buffers) {
+        try {
+            for (ByteBuffer buffer : buffers)
+                buffer.clear();
+
+            return channel.write(buffers);
+        } catch (IOException e) {
+            throw failure("sending data", e);
+        }
+    }
+
+    /**
+     * Sends the remaining data of a buffer over the specified channel
+     *
+     * @param channel the channel for sending data
+     * @param buffer  the buffer holding the data to be sent
+     */
+    public final static void sendFully(SocketChannel channel,
+                                       ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } catch (IOException e) {
+            throw failure("sending data", e);
+        }
+    }
+
+    /**
+     * Receives exactly enough data from the specified channel to fill the
+     * buffer
+     *
+     * @param channel the channel for receiving data
+     * @param buffer  the buffer to store the received data in
+     *
+     * @return true if the buffer was filled, false if the connection was
+     *         lost first
+     */
+    public final static boolean receiveFully(SocketChannel channel,
+                                             ByteBuffer buffer) {
+        try {
+            buffer.clear();
+
+            while (buffer.hasRemaining())
+                if (channel.read(buffer) == -1)
+                    return false;
+
+            return true;
+        } catch (IOException e) {
+            throw failure("receiving data", e);
+        }
+    }
+
+    /**
+     * Disables Nagle's algorithm on the specified socket, so that small
+     * messages are sent immediately
+     *
+     * @param socket the socket to configure
+     */
+    public final static void setNoDelay(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            throw failure("configuring socket", e);
+        }
+    }
+
+    /**
+     * Receives data from the specified channel
+     *
+     * @param channel the channel for receiving data
+     * @param buffer  the buffer to store the received data in
+     *
+     * @return the size of the data received
+     */
+    public final static int receiveData(SocketChannel channel,
+                                        ByteBuffer buffer) {
+        try {
+            buffer.clear();
+            return channel.read(buffer);
+        } catch (IOException e) {
+            throw failure("receiving data", e);
+        }
+    }
+
+    /**
+     * Opens the specified file for reading, or for writing from scratch
+     *
+     * @param path  the path of the file to open
+     * @param write true to create or truncate the file for writing,
+     *              false to open it for reading
+     *
+     * @return the opened file channel
+     */
+    public final static FileChannel openFile(String path, boolean write) {
+        try {
+            if (write)
+                return FileChannel.open(Paths.get(path),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+
+            return FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw failure("opening file", e);
+        }
+    }
+
+    /**
+     * Closes the specified file
+     *
+     * @param file the file to be closed
+     */
+    public final static void closeFile(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw failure("closing file", e);
+        }
+    }
+
+    /**
+     * Sends part of a file over the specified channel, letting the kernel
+     * copy the data directly from the file (sendfile)
+     *
+     * @param file     the file to send data from
+     * @param position the position in the file to start sending from
+     * @param channel  the channel for sending data
+     *
+     * @return the number of bytes sent
+     */
+    public final static long sendFile(FileChannel file, long position,
+                                      SocketChannel channel) {
+        try {
+            return file.transferTo(position,
+                Constants.FILE_TRANSFER_SIZE.getValue(), channel);
+        } catch (IOException e) {
+            throw failure("sending file", e);
+        }
+    }
+
+    /**
+     * Receives data from the specified channel directly into a file
+     *
+     * @param channel  the channel for receiving data
+     * @param file     the file to store the received data in
+     * @param position the position in the file to store the data at
+     *
+     * @return the size of the data received, 0 once the connection is lost
+     */
+    public final static long receiveFile(SocketChannel channel,
+                                         FileChannel file, long position) {
+        try {
+            return file.transferFrom(channel, position,
+                Constants.FILE_TRANSFER_SIZE.getValue());
+        } catch (IOException e) {
+            throw failure("receiving file", e);
+        }
+    }
+
+    /**
+     * Creates a client side datagram channel connected to the server
+     * with the given configurations
+     *
+     * @param config A client configuration object to set up the channel
+     *
+     * @return the created DatagramChannel object
+     */
+    public final static DatagramChannel createChannel(ClientConfig config) {
+        try {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.connect(new InetSocketAddress(config.hostname(),
+                                                  config.serverPort()));
+            return channel;
         } catch (IOException e) {
             e.printStackTrace();
-            System.err.println("Error receiving data: " + e.getMessage());
+            System.err.println("Error creating channel: " + e.getMessage());
             System.exit(1);
         }
 
-        return -1;
+        return null;
+    }
+
+    /**
+     * Creates a server side datagram channel with the given configurations
+     *
+     * @param config A server configuration object to set up the channel
+     *
+     * @return the created DatagramChannel object
+     */
+    public final static DatagramChannel createChannel(ServerConfig config) {
+        try {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(config.listenPort()));
+            return channel;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Error creating channel: " + e.getMessage());
+            System.exit(1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Creates a selector to wait for datagrams on the specified channel with
+     * a timeout, making the channel non-blocking
+     *
+     * @param channel the channel to wait for datagrams on
+     *
+     * @return the created Selector object
+     */
+    public final static Selector createSelector(DatagramChannel channel) {
+        try {
+            Selector selector = Selector.open();
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            return selector;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Error creating selector: " + e.getMessage());
+            System.exit(1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Closes the specified datagram channel
+     *
+     * @param channel the channel to be closed
+     */
+    public final static void closeChannel(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Error closing channel: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Sends a datagram over the specified connected channel
+     *
+     * @param channel the channel for sending data
+     * @param buffer  the buffer holding the datagram to be sent
+     *
+     * @return the number of bytes sent
+     */
+    public final static int sendDatagram(DatagramChannel channel,
+                                         ByteBuffer buffer) {
+        try {
+            buffer.clear();
+            return channel.write(buffer);
+        } catch (IOException e) {
+            throw failure("sending data", e);
+        }
+    }
+
+    /**
+     * Receives a datagram from the specified non-blocking channel, waiting
+     * at most the given time for one to arrive
+     *
+     * @param channel  the channel for receiving data
+     * @param selector the selector the channel is registered with
+     * @param buffer   the buffer to store the received datagram in
+     * @param timeout  the time to wait in milliseconds, 0 to wait forever
+     *
+     * @return the address of the sender, or null if no datagram arrived
+     */
+    public final static SocketAddress receiveDatagram(DatagramChannel channel,
+                                                      Selector selector,
+                                                      ByteBuffer buffer,
+                                                      long timeout) {
+        try {
+            buffer.clear();
+            SocketAddress sender = channel.receive(buffer);
+
+            while (sender == null && selector.select(timeout) > 0) {
+                selector.selectedKeys().clear();
+                sender = channel.receive(buffer);
+            }
+
+            return sender;
+        } catch (IOException e) {
+            throw failure("receiving data", e);
+        }
     }
 }
@@ -10,6 +10,48 @@ public enum Constants {
     /** The size of data chunks used in network communication (bytes) */
     CHUNK_SIZE(1000),
 
+    /** The default size of the NIO transport's direct buffer (bytes) */
+    NIO_BUFFER_SIZE(128 * 1024),
+
+    /** The number of views of the direct buffer gathered into a single write */
+    NIO_GATHER_COUNT(4),
+
+    /** The maximum number of bytes moved by a single file transfer call */
+    FILE_TRANSFER_SIZE(8 * 1024 * 1024),
+
+    /** The default size of a request-response message (bytes) */
+    ECHO_MESSAGE_SIZE(64),
+
+    /** The magic number that opens the header of a TCP test */
+    HEADER_MAGIC(0x49504652),
+
+    /** The default size of a UDP datagram, fitting an Ethernet frame (bytes) */
+    UDP_DATAGRAM_SIZE(1470),
+
+    /** The largest UDP datagram payload (bytes) */
+    UDP_MAX_DATAGRAM_SIZE(65507),
+
+    /** The size of the sequence number and timestamp header (bytes) */
+    UDP_HEADER_SIZE(16),
+
+    /** The default target bitrate of UDP tests (megabits per second) */
+    UDP_DEFAULT_RATE(1),
+
+    /** The number of times the end of a UDP test is signalled */
+    UDP_FIN_COUNT(5),
+
+    /** How long a UDP test waits for a datagram before ending (ms) */
+    UDP_IDLE_TIMEOUT(10_000),
+
+    /** The conversion factor from nanoseconds to milliseconds */
+    NANOSECONDS_IN_MILLISECONDS(1_000_000),
+
+    /** The conversion factor from nanoseconds to microseconds */
+    NANOSECONDS_IN_MICROSECONDS(1000),
+
+    /** The conversion factor from nanoseconds to seconds */
+    NANOSECONDS_IN_SECONDS(1_000_000_000),
+
     /** The conversion factor from milliseconds to seconds */
     MILLISECONDS_IN_SECONDS(1000),
 
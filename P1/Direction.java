@@ -0,0 +1,19 @@
+/**
+ * @author Mrigank Kumar
+ *
+ * Enumeration of the directions data flows in during a TCP test
+ * The client announces the direction to the server when it connects
+ */
+public enum Direction {
+    /** The client sends and the server receives */
+    UPLOAD,
+
+    /** The server sends and the client receives */
+    REVERSE,
+
+    /** Both ends send and receive concurrently over the same connection */
+    BIDIRECTIONAL,
+
+    /** The client sends messages and the server echoes each one back */
+    ECHO;
+}
@@ -0,0 +1,50 @@
+import java.net.Socket;
+
+/**
+ * @author Mrigank Kumar
+ *
+ * This class represents the receiving half of a bidirectional test
+ * It receives over a socket shared with the sending half on its own thread,
+ * keeping its own buffers and statistics
+ */
+public class DuplexReceiver extends NetworkTest {
+    /**
+     * Constructs a DuplexReceiver over the socket of the sending half
+     *
+     * @param format     The summary format string
+     * @param socket     The socket shared with the sending half
+     * @param bufferSize The size of the buffer in bytes
+     * @param direct     true to receive through the socket's channel into a
+     *                   direct buffer, false to use the socket's stream
+     */
+    public DuplexReceiver(String format, Socket socket, int bufferSize,
+                          boolean direct) {
+        super(format, bufferSize, direct);
+        this.socket = socket;
+    }
+
+    /**
+     * Runs the test, the session is managed by the sending half
+     */
+    @Override
+    public void startSession() {
+        runTest();
+    }
+
+    /**
+     * The socket is owned by the sending half, so there is nothing to close
+     */
+    @Override
+    public void stopSession() {}
+
+    /**
+     * Starts the network test
+     * Receives data until the other end shuts down its output
+     */
+    @Override
+    public void startTest() {
+        startTimer(0);
+        receiveUntilClosed();
+        stopTimer();
+    }
+}
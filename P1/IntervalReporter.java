@@ -0,0 +1,182 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * @author Mrigank Kumar
+ *
+ * Periodically samples the number of bytes transferred by a network test
+ * and reports the rate over each interval
+ * Samples are printed to the console, and optionally appended to a file as
+ * CSV or JSON lines (selected by a .json or .jsonl file extension)
+ */
+public class IntervalReporter {
+    // Label format for the interval in console output
+    private final static String intervalLabel = "[%7.2f-%7.2f sec] ";
+
+    // Header of a CSV output file
+    private final static String csvHeader = "start,end,bytes,mbps";
+
+    // Format of a CSV output line
+    private final static String csvFormat = "%.3f,%.3f,%d,%f\n";
+
+    // Format of a JSON output line
+    private final static String jsonFormat =
+        "{\"start\":%.3f,\"end\":%.3f,\"bytes\":%d,\"mbps\":%f}\n";
+
+    // The reporting configuration
+    private final ReportConfig config;
+
+    // The format string to print out interval statistics
+    private final String summaryFormat;
+
+    // The test being sampled
+    private NetworkTest test;
+
+    // Timer driving the samples
+    private PeriodicTask task;
+
+    // Output file for the samples, null for console only
+    private PrintWriter output;
+
+    // Whether the output file is written as JSON lines
+    private boolean json;
+
+    // Time the reporter was started at in nanoseconds
+    private long baseTime;
+
+    // Time and byte count of the previous sample
+    private long lastTime;
+    private long lastBytes;
+
+    /**
+     * Constructs an IntervalReporter with the given configuration
+     *
+     * @param config        The reporting configuration
+     * @param summaryFormat The format string to print interval statistics
+     */
+    private IntervalReporter(ReportConfig config, String summaryFormat) {
+        this.config = config;
+        this.summaryFormat = summaryFormat;
+    }
+
+    /**
+     * Creates an IntervalReporter for the given configuration
+     *
+     * @param config        The reporting configuration
+     * @param summaryFormat The format string to print interval statistics
+     *
+     * @return the reporter, or null if interval reporting is disabled
+     */
+    public static IntervalReporter create(ReportConfig config,
+                                          String summaryFormat) {
+        if (config == null || config.interval() <= 0.0)
+            return null;
+
+        return new IntervalReporter(config, summaryFormat);
+    }
+
+    /**
+     * Starts sampling the given test
+     *
+     * @param test The test to sample
+     */
+    public void start(NetworkTest test) {
+        this.test = test;
+
+        if (config.output() != null)
+            openOutput();
+
+        baseTime = lastTime = System.nanoTime();
+        lastBytes = 0;
+
+        // The first run of the task happens immediately, skip it
+        task = new PeriodicTask(new Runnable() {
+            private boolean first = true;
+
+            @Override
+            public void run() {
+                if (first)
+                    first = false;
+                else
+                    sample();
+            }
+        }, (long) (config.interval()
+                   * Constants.NANOSECONDS_IN_SECONDS.getValue()));
+        task.start();
+    }
+
+    /**
+     * Stops sampling, reporting the final partial interval if it carried
+     * any data
+     */
+    public void stop() {
+        task.stop();
+
+        if (test.sampleBytes() != lastBytes)
+            sample();
+
+        if (output != null)
+            output.close();
+    }
+
+    /**
+     * Samples the test and reports the interval since the previous sample
+     */
+    private void sample() {
+        long now = System.nanoTime();
+        long bytes = test.sampleBytes();
+
+        double start = (double) (lastTime - baseTime)
+            / Constants.NANOSECONDS_IN_SECONDS.getValue();
+        double end = (double) (now - baseTime)
+            / Constants.NANOSECONDS_IN_SECONDS.getValue();
+        long delta = bytes - lastBytes;
+
+        // Rate in megabits per second
+        double rate = delta * Constants.BITS_IN_BYTE.getValue() / (end - start);
+        rate /= Constants.BYTES_IN_KB.getValue()
+            * Constants.KBITS_IN_MBITS.getValue();
+
+        // samples of a test reported as JSON go into its document instead
+        JsonReport report = test.report;
+
+        if (report != null)
+            report.addInterval(start, end, delta, rate);
+        else
+            System.out.printf(String.format(intervalLabel, start, end)
+                + summaryFormat, delta / Constants.BYTES_IN_KB.getValue(),
+                rate);
+
+        if (output != null) {
+            output.printf(json ? jsonFormat : csvFormat,
+                          start, end, delta, rate);
+            output.flush();
+        }
+
+        lastTime = now;
+        lastBytes = bytes;
+    }
+
+    /**
+     * Opens the output file for appending, writing the CSV header to a new
+     * CSV file
+     */
+    private void openOutput() {
+        String path = config.output();
+        json = path.endsWith(".json") || path.endsWith(".jsonl");
+
+        try {
+            boolean empty = new File(path).length() == 0;
+            output = new PrintWriter(new FileWriter(path, true));
+
+            if (!json && empty)
+                output.println(csvHeader);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Error opening output file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
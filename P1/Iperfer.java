@@ -1,3 +1,5 @@
+import java.io.UncheckedIOException;
+
 /**
  * @author Mrigank Kumar
  *
@@ -8,8 +10,16 @@
  */
 public class Iperfer {
     // The usage message for the Iperfer application
-    private final static String USAGE_MSG = "Usage: java Iperfer -[c|s] -h"
-        + " <server hostname> -p <server port> -t <time>";
+    private final static String USAGE_MSG = "Usage: java Iperfer -c"
+        + " -h <server hostname> -p <server port> -t <time> [-O <warmup>]"
+        + " [-P <streams>] [-n] [-l <buffer size>] [-F <file>] [-R | -d | -r]"
+        + " [-b <bitrate> [--burst <burst>]] [-u] [-w <window>]"
+        + " [--sndbuf <size>] [--rcvbuf <size>] [-N] [--sweep <max size>]"
+        + " [-i <interval>] [-o <output>] [-J]\n"
+        + "       java Iperfer -s -p <listen port> [-P <streams> | -C] [-n]"
+        + " [-l <buffer size>] [-F <file>] [-u] [-w <window>]"
+        + " [--sndbuf <size>] [--rcvbuf <size>] [-N] [-i <interval>]"
+        + " [-o <output>] [-J]";
 
     /**
      * Prints the usage message for the Iperfer application
@@ -48,15 +58,34 @@ public class Iperfer {
         NetworkTest session;
 
         if (parser.isClientMode()) {
-            session = new IperferClient(parser.getClientConfig());
+            ClientConfig config = parser.getClientConfig();
+            session = config.udp() ? new IperferUdpClient(config)
+                                   : new IperferClient(config);
         } else if (parser.isServerMode()) {
-            session = new IperferServer(parser.getServerConfig());
+            ServerConfig config = parser.getServerConfig();
+            session = config.udp() ? new IperferUdpServer(config)
+                                   : new IperferServer(config);
         } else {
             printErrorMsg("Failed to parse args!");
             printUsage();
             return;
         }
 
-        session.startSession();
+        // errors on connections of other threads also end the program
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> {
+            if (e instanceof UncheckedIOException) {
+                ConnectionUtils.exit((UncheckedIOException) e);
+            } else {
+                System.err.print("Exception in thread \""
+                                 + thread.getName() + "\" ");
+                e.printStackTrace();
+            }
+        });
+
+        try {
+            session.startSession();
+        } catch (UncheckedIOException e) {
+            ConnectionUtils.exit(e);
+        }
     }
 }
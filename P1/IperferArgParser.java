@@ -25,6 +25,82 @@ public class IperferArgParser extends ArgParser {
         new ArgsNotParsedException("Error: port number must be in the range "
             + "1024 to 65535");
 
+    // Error message for an invalid number of parallel streams
+    private final static ArgsNotParsedException ERROR_INVALID_PARALLEL =
+        new ArgsNotParsedException("Error: number of parallel streams must be "
+            + "at least 1");
+
+    // Error message for an invalid buffer size
+    private final static ArgsNotParsedException ERROR_INVALID_BUFFER =
+        new ArgsNotParsedException("Error: buffer size must be at least 1 "
+            + "byte");
+
+    // Error message for a file mode server expecting several streams
+    private final static ArgsNotParsedException ERROR_PARALLEL_FILE =
+        new ArgsNotParsedException("Error: a server writing to a file accepts "
+            + "a single stream");
+
+    // Error message for a concurrent server expecting parallel streams
+    private final static ArgsNotParsedException ERROR_PARALLEL_CONCURRENT =
+        new ArgsNotParsedException("Error: a concurrent server accepts any "
+            + "number of streams, -P cannot be used with -C");
+
+    // Error message for an invalid reporting interval
+    private final static ArgsNotParsedException ERROR_INVALID_INTERVAL =
+        new ArgsNotParsedException("Error: reporting interval must be "
+            + "positive");
+
+    // Error message for an interval output file without an interval
+    private final static ArgsNotParsedException ERROR_OUTPUT_WITHOUT_INTERVAL =
+        new ArgsNotParsedException("Error: an interval output file requires "
+            + "a reporting interval, -o cannot be used without -i");
+
+    // Error message for an invalid UDP datagram size
+    private final static ArgsNotParsedException ERROR_INVALID_DATAGRAM =
+        new ArgsNotParsedException("Error: datagram size must be in the range "
+            + Constants.UDP_HEADER_SIZE.getValue() + " to "
+            + Constants.UDP_MAX_DATAGRAM_SIZE.getValue());
+
+    // Error message for an invalid target bitrate
+    private final static ArgsNotParsedException ERROR_INVALID_RATE =
+        new ArgsNotParsedException("Error: target bitrate must be positive");
+
+    // Error message for an invalid burst size
+    private final static ArgsNotParsedException ERROR_INVALID_BURST =
+        new ArgsNotParsedException("Error: burst size must be at least 1 byte "
+            + "and requires -b");
+
+    // Error message for pacing TCP tests the client does not send
+    private final static ArgsNotParsedException ERROR_PACING =
+        new ArgsNotParsedException("Error: -b only paces the data sent by the "
+            + "client, it cannot be used with -R, -r, -F or --sweep");
+
+    // Error message for options that only apply to TCP tests
+    private final static ArgsNotParsedException ERROR_UDP_OPTIONS =
+        new ArgsNotParsedException("Error: -P, -C, -n, -F, -R, -d and -r "
+            + "cannot be used with -u");
+
+    // Error message for ambiguous or unsupported test directions
+    private final static ArgsNotParsedException ERROR_DIRECTION =
+        new ArgsNotParsedException("Error: only one of -R, -d and -r can be "
+            + "used, none of them with -F, and -d or -r not with -P");
+
+    // Error message for an invalid socket buffer size
+    private final static ArgsNotParsedException ERROR_INVALID_SOCKET_BUFFER =
+        new ArgsNotParsedException("Error: socket buffer sizes must be "
+            + "positive");
+
+    // Error message for an invalid or unsupported warm-up period
+    private final static ArgsNotParsedException ERROR_INVALID_WARMUP =
+        new ArgsNotParsedException("Error: warm-up period cannot be negative "
+            + "or used with -u");
+
+    // Error message for an invalid or unsupported write size sweep
+    private final static ArgsNotParsedException ERROR_INVALID_SWEEP =
+        new ArgsNotParsedException("Error: the largest write size of a sweep "
+            + "must be at least the write size, and a sweep only runs single "
+            + "stream TCP upload tests");
+
     // Error message for attempting to access parsed arguments before parsing
     private final static ArgsNotParsedException ERROR_PARSE_FIRST =
         new ArgsNotParsedException("Options have not been parsed. "
@@ -58,7 +134,27 @@ public class IperferArgParser extends ArgParser {
             .addOption("-s", "boolean", "Server Mode")
             .addOption("-h", "String", "Hostname")
             .addOption("-p", "int", "Port Number")
-            .addOption("-t", "int", "Test Duration");
+            .addOption("-t", "int", "Test Duration")
+            .addOption("-O", "int", "Warm-up Period")
+            .addOption("-P", "int", "Parallel Streams")
+            .addOption("-C", "boolean", "Concurrent Server")
+            .addOption("-n", "boolean", "NIO Transport")
+            .addOption("-l", "int", "NIO Buffer Size")
+            .addOption("-F", "String", "Data File")
+            .addOption("-u", "boolean", "UDP Mode")
+            .addOption("-b", "double", "Target Bitrate")
+            .addOption("--burst", "int", "Burst Size")
+            .addOption("-R", "boolean", "Reverse Mode")
+            .addOption("-d", "boolean", "Bidirectional Mode")
+            .addOption("-r", "boolean", "Request-Response Mode")
+            .addOption("-w", "int", "Socket Buffer Size")
+            .addOption("--sndbuf", "int", "Socket Send Buffer Size")
+            .addOption("--rcvbuf", "int", "Socket Receive Buffer Size")
+            .addOption("-N", "boolean", "TCP No Delay")
+            .addOption("--sweep", "int", "Largest Write Size Of A Sweep")
+            .addOption("-i", "double", "Reporting Interval")
+            .addOption("-o", "String", "Interval Output File")
+            .addOption("-J", "boolean", "JSON Output");
     }
 
     /**
@@ -70,6 +166,31 @@ public class IperferArgParser extends ArgParser {
      * @throws ArgsNotParsedException if required arguments are missing or
      *                         `      additional arguments are present
      * @throws ArgsNotParsedException if the port number is out of range
+     * @throws ArgsNotParsedException if the number of parallel streams is
+     *                                not positive
+     * @throws ArgsNotParsedException if the buffer size is not positive
+     * @throws ArgsNotParsedException if the UDP datagram size is out of range
+     * @throws ArgsNotParsedException if the target bitrate is not positive
+     * @throws ArgsNotParsedException if the burst size is not positive or
+     *                                used without a target bitrate
+     * @throws ArgsNotParsedException if a TCP test the client does not send
+     *                                data in is paced
+     * @throws ArgsNotParsedException if TCP only options are used with UDP
+     * @throws ArgsNotParsedException if the test direction is ambiguous or
+     *                                unsupported with the other options
+     * @throws ArgsNotParsedException if a socket buffer size is not positive
+     * @throws ArgsNotParsedException if the warm-up period is negative or
+     *                                used with UDP
+     * @throws ArgsNotParsedException if a write size sweep is invalid or
+     *                                unsupported with the other options
+     * @throws ArgsNotParsedException if a server writing to a file expects
+     *                                parallel streams or concurrent clients
+     * @throws ArgsNotParsedException if a concurrent server expects
+     *                                parallel streams
+     * @throws ArgsNotParsedException if the reporting interval is not
+     *                                positive
+     * @throws ArgsNotParsedException if an interval output file is given
+     *                                without a reporting interval
      */
     @Override
     public void parse(String[] args) {
@@ -87,6 +208,132 @@ public class IperferArgParser extends ArgParser {
         if (port < PORT_MIN || port > PORT_MAX)
             throw ERROR_INVALID_PORT;
 
+        // Number of parallel streams defaults to a single stream
+        int parallel = getOption("-P").found() ? get("-P") : 1;
+
+        if (parallel < 1)
+            throw ERROR_INVALID_PARALLEL;
+
+        // Transferring to or from a file requires the channel transport
+        String file = getOption("-F").found() ? get("-F") : null;
+        boolean nio = file != null || this.<Boolean>get("-n");
+
+        boolean udp = get("-u");
+        boolean reverse = get("-R");
+        boolean bidirectional = get("-d");
+        boolean echo = get("-r");
+
+        // UDP tests only run a single stream of datagrams on their own
+        // channel, without any of the TCP transports
+        if (udp && (parallel > 1 || nio || reverse || bidirectional || echo
+                    || this.<Boolean>get("-C")))
+            throw ERROR_UDP_OPTIONS;
+
+        // Only the client sends a file, and bidirectional and
+        // request-response tests run a single stream
+        int directions = (reverse ? 1 : 0) + (bidirectional ? 1 : 0)
+            + (echo ? 1 : 0);
+
+        if (directions > 1
+            || directions > 0 && file != null
+            || (bidirectional || echo) && parallel > 1)
+            throw ERROR_DIRECTION;
+
+        Direction direction = reverse ? Direction.REVERSE
+            : bidirectional ? Direction.BIDIRECTIONAL
+            : echo ? Direction.ECHO : Direction.UPLOAD;
+
+        int bufferSize;
+
+        if (udp) {
+            // The buffer size is the datagram size, which must at least
+            // hold the sequence number and timestamp
+            bufferSize = getOption("-l").found()
+                ? get("-l") : Constants.UDP_DATAGRAM_SIZE.getValue();
+
+            if (bufferSize < Constants.UDP_HEADER_SIZE.getValue()
+                || bufferSize > Constants.UDP_MAX_DATAGRAM_SIZE.getValue())
+                throw ERROR_INVALID_DATAGRAM;
+        } else {
+            // The buffer size is the message size of request-response tests,
+            // otherwise the write size, which defaults to a large buffer for
+            // the NIO transport
+            bufferSize = getOption("-l").found() ? get("-l")
+                : echo ? Constants.ECHO_MESSAGE_SIZE.getValue()
+                : nio ? Constants.NIO_BUFFER_SIZE.getValue()
+                : Constants.CHUNK_SIZE.getValue();
+
+            if (bufferSize < 1)
+                throw ERROR_INVALID_BUFFER;
+        }
+
+        // Target bitrate of UDP tests, TCP tests are only paced when a
+        // target bitrate is given
+        boolean paced = getOption("-b").found();
+        double rate = paced ? get("-b")
+            : udp ? Constants.UDP_DEFAULT_RATE.getValue() : 0.0;
+
+        if (paced && rate <= 0.0)
+            throw ERROR_INVALID_RATE;
+
+        // A paced TCP test sends up to one write or one millisecond of data
+        // at once by default, whichever is larger, so that oversleeping by
+        // the timer resolution does not lose tokens
+        int burst = getOption("--burst").found() ? get("--burst")
+            : (int) Math.max(bufferSize, rate
+                * Constants.KBITS_IN_MBITS.getValue()
+                * Constants.BYTES_IN_KB.getValue()
+                / Constants.BITS_IN_BYTE.getValue()
+                / Constants.MILLISECONDS_IN_SECONDS.getValue());
+
+        if (burst < 1 || (getOption("--burst").found() && (!paced || udp)))
+            throw ERROR_INVALID_BURST;
+
+        // The server sends in reverse tests and echoes in request-response
+        // tests, file transfers move whole chunks of the file at once, and
+        // sweeps measure the unpaced rate
+        if (paced && !udp && (reverse || echo || file != null
+                              || getOption("--sweep").found()))
+            throw ERROR_PACING;
+
+        // -w sets both socket buffers, which the specific options override
+        int window = getOption("-w").found() ? get("-w") : 0;
+        int sendBuffer = getOption("--sndbuf").found()
+            ? get("--sndbuf") : window;
+        int receiveBuffer = getOption("--rcvbuf").found()
+            ? get("--rcvbuf") : window;
+
+        if ((getOption("-w").found() && window <= 0)
+            || (getOption("--sndbuf").found() && sendBuffer <= 0)
+            || (getOption("--rcvbuf").found() && receiveBuffer <= 0))
+            throw ERROR_INVALID_SOCKET_BUFFER;
+
+        SocketOptions options = new SocketOptions(sendBuffer, receiveBuffer,
+                                                  get("-N"));
+
+        // Write size sweeps double the write size up to the largest size,
+        // the server's write size is used when it sends, so sweeps only
+        // upload
+        int sweepMax = getOption("--sweep").found() ? get("--sweep") : 0;
+
+        if (getOption("--sweep").found()
+            && (sweepMax < bufferSize || parallel > 1 || udp || file != null
+                || direction != Direction.UPLOAD))
+            throw ERROR_INVALID_SWEEP;
+
+        // Interval reporting is disabled unless an interval is given
+        double interval = getOption("-i").found() ? get("-i") : 0.0;
+
+        if (getOption("-i").found() && interval <= 0.0)
+            throw ERROR_INVALID_INTERVAL;
+
+        // Interval samples are only written while intervals are reported
+        if (getOption("-o").found() && !getOption("-i").found())
+            throw ERROR_OUTPUT_WITHOUT_INTERVAL;
+
+        String output = getOption("-o").found() ? get("-o") : null;
+        ReportConfig report = new ReportConfig(interval, output, get("-J"));
+
         boolean isClient = get("-c");
         boolean isServer = get("-s");
 
@@ -102,11 +349,32 @@ public class IperferArgParser extends ArgParser {
             String hostName = get("-h");
             int duration = get("-t");
 
-            clientConfig = new ClientConfig(hostName, port, duration);
+            // The warm-up period precedes the test duration and is excluded
+            // from the statistics on both ends of the connection
+            int warmup = getOption("-O").found() ? get("-O") : 0;
+
+            if (warmup < 0 || (warmup > 0 && udp))
+                throw ERROR_INVALID_WARMUP;
+
+            clientConfig = new ClientConfig(hostName, port, duration, warmup,
+                                        parallel, nio, bufferSize, file,
+                                        udp, rate, burst, direction, options,
+                                        sweepMax, report);
         }
         else {
             // Server mode only requires the listen port
-            serverConfig = new ServerConfig(port);
+            boolean concurrent = get("-C");
+
+            if (concurrent && parallel > 1)
+                throw ERROR_PARALLEL_CONCURRENT;
+
+            // Parallel streams cannot share the output file
+            if (file != null && (parallel > 1 || concurrent))
+                throw ERROR_PARALLEL_FILE;
+
+            serverConfig = new ServerConfig(port, parallel, concurrent, nio,
+                                            bufferSize, file, udp, options,
+                                            report);
         }
     }
 
@@ -1,4 +1,8 @@
-
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author Arushi Mishra
@@ -11,8 +15,21 @@ public class IperferClient extends NetworkTest {
     // Client configuration
     ClientConfig config;
 
-    // Output format
-    private final static String clientFormat = "sent=%d KB rate=%f Mbps\n";
+    // Output format of a request-response test
+    private final static String echoFormat = "sent=%d KB rate=%f Mbps"
+        + " transactions=%d tps=%f p50=%f us p99=%f us p99.9=%f us"
+        + " max=%f us\n";
+
+    // Output format of a paced test
+    private final static String pacedFormat = "sent=%d KB rate=%f Mbps"
+        + " requested=%f Mbps\n";
+
+    // Header and row formats of the throughput table of a write size sweep
+    private final static String sweepHeader = "%12s %12s %14s\n";
+    private final static String sweepFormat = "%12d %12d %14f\n";
+
+    // Round-trip latencies of a request-response test, null otherwise
+    private final LatencyHistogram histogram;
 
     /**
      * Constructs an IperferClient object with the given client configuration
@@ -20,57 +37,303 @@ public class IperferClient extends NetworkTest {
      * @param config The client configuration to use.
      */
     public IperferClient(ClientConfig config) {
-        super(clientFormat);
+        super(config.direction() == Direction.REVERSE
+                ? receivedFormat : sentFormat,
+              config.bufferSize(), config.nio());
         this.config = config;
+        this.warmup = toNanos(config.warmup());
+        this.reporter = IntervalReporter.create(config.report(),
+                                                summaryFormat);
+        this.histogram = config.direction() == Direction.ECHO
+            ? new LatencyHistogram() : null;
+        this.pacer = config.rate() > 0.0
+            ? new TokenBucket(config.rate(), config.burst()) : null;
+        this.report = JsonReport.create(config.report(), config);
+    }
+
+    /**
+     * Constructs an IperferClient stream over an already connected socket
+     *
+     * @param config The client configuration to use.
+     * @param socket The connected socket to send data on
+     */
+    IperferClient(ClientConfig config, Socket socket) {
+        this(config);
+        this.socket = socket;
     }
 
     /**
      * Starts the a test session for the client and runs a network test
+     * If more than one parallel stream is requested, every stream gets its
+     * own connection and thread
+     * A write size sweep runs one test per write size instead
      */
     @Override
     public void startSession() {
         // Implement client logic to send data
 
-        //create socket connection
-        socket = ConnectionUtils.createSocket(config);
+        if (config.sweepMax() > 0) {
+            sweep();
+        } else if (config.parallel() > 1) {
+            // connect every stream before any of them starts sending
+            List<IperferClient> streams = new ArrayList<>(config.parallel());
+
+            for (int i = 0; i < config.parallel(); i++)
+                streams.add(new IperferClient(config, connect()));
 
-        //start test
-        startTest();
+            new ParallelTest(summaryFormat, streams, reporter, report)
+                .startSession();
+        } else {
+            //create socket connection
+            socket = connect();
 
+            if (config.direction() == Direction.BIDIRECTIONAL) {
+                runDuplexTest("");
+            } else {
+                //start test
+                runTest();
+
+                //close the socket connection 
+                stopSession();
+
+                //print stat summary from NetworkTest
+                printSummary();
+            }
+        }
+
+        printReport();
     }
 
     /**
-     * Stops the session and prints the test summary
+     * Runs one test after another, doubling the write size from the
+     * configured write size up to the largest write size of the sweep,
+     * then prints the throughput of every test as a table, or adds every
+     * test to the JSON report labelled with its write size
      */
-    public void stopSession() {
-        // Implement client termination logic
+    private void sweep() {
+        List<IperferClient> steps = new ArrayList<>();
+
+        for (long size = config.bufferSize(); size <= config.sweepMax();
+             size *= 2) {
+            IperferClient step =
+                new IperferClient(config.withBufferSize((int) size));
+
+            step.socket = step.connect();
+            step.runTest();
+            step.stopSession();
+            steps.add(step);
+        }
+
+        if (report != null) {
+            for (IperferClient step : steps) {
+                step.report = report;
+                step.printSummary(
+                    String.valueOf(step.config.bufferSize()));
+            }
+
+            return;
+        }
+
+        System.out.printf(sweepHeader, "write (B)", "total (KB)",
+                          "rate (Mbps)");
 
-        //close the socket connection 
-        super.stopSession();
-        //print stat summary from NetworkTest
-        printSummary();
+        for (IperferClient step : steps) {
+            NetworkTestStats stats = step.getStats();
+
+            System.out.printf(sweepFormat, step.config.bufferSize(),
+                              stats.totalKB(), stats.rate());
+        }
+    }
+
+    /**
+     * Connects to the server and announces the test
+     *
+     * @return the connected socket
+     */
+    private Socket connect() {
+        Socket socket = ConnectionUtils.createSocket(config);
+
+        ConnectionUtils.sendHeader(socket,
+            new ConnectionUtils.Header(config.direction(), config.time(),
+                                       config.warmup()));
+
+        // small messages must not wait for earlier ones to be acknowledged
+        if (config.direction() == Direction.ECHO)
+            ConnectionUtils.setNoDelay(socket);
+
+        return socket;
     }
 
     /**
      * Starts the network test
      * This method constantly sends data to the server for the duration
-     * specified by the client configuration instance
+     * specified by the client configuration instance, after the warm-up
+     * period, until a timer stops it
+     * In reverse mode it receives data until the server stops sending, and
+     * in request-response mode it exchanges messages with the server
      */
     @Override
     public void startTest() {
 
-        startTime = System.currentTimeMillis();
-        endTime = startTime + 
-            config.time() * Constants.MILLISECONDS_IN_SECONDS.getValue();
+        startTimer(config.direction() == Direction.REVERSE
+                   ? 0 : toNanos(config.time()));
+
+        if (config.direction() == Direction.REVERSE)
+            receiveUntilClosed();
+        else if (config.direction() == Direction.ECHO)
+            exchangeMessages();
+        else if (config.file() != null)
+            sendFileData();
+        else
+            //send data for config.time() seconds 
+            sendUntilEnd();
 
-        //send data for config.time() seconds 
-        while(System.currentTimeMillis() < endTime) {
-            ConnectionUtils.sendData(socket);
-            totalBytes += Constants.CHUNK_SIZE.getValue();
+        stopTimer();
+    }
+
+    /**
+     * Sends the configured file over the socket's channel until the timer
+     * stops the test, starting over from the beginning whenever the file is
+     * exhausted
+     */
+    private void sendFileData() {
+        SocketChannel channel = socket.getChannel();
+        FileChannel file = ConnectionUtils.openFile(config.file(), false);
+        long position = 0;
+        long sent;
+
+        while (running) {
+            sent = ConnectionUtils.sendFile(file, position, channel);
+
+            // end of file reached, repeat the file
+            if (sent == 0) {
+                if (position == 0)
+                    break;
+
+                position = 0;
+                continue;
+            }
+
+            position += sent;
+            addBytes(sent);
         }
 
-        //stop session 
-        stopSession();
+        ConnectionUtils.closeFile(file);
     }
-}
 
+    /**
+     * Sends a message and waits for the server to echo it back, over and
+     * over until the timer stops the test, recording the round-trip latency
+     * of every message exchanged after the warm-up period
+     */
+    private void exchangeMessages() {
+        SocketChannel channel = socket.getChannel();
+        long warmupEnd = startTime + warmup;
+        long start;
+
+        while (running) {
+            start = System.nanoTime();
+
+            if (directBuffer != null) {
+                directBuffer.clear();
+                ConnectionUtils.sendFully(channel, directBuffer);
+
+                if (!ConnectionUtils.receiveFully(channel, directBuffer))
+                    break;
+            } else {
+                ConnectionUtils.sendData(socket, dataBuffer);
+
+                if (!ConnectionUtils.receiveFully(socket, dataBuffer))
+                    break;
+            }
+
+            if (start - warmupEnd >= 0)
+                histogram.record(System.nanoTime() - start);
+
+            addBytes(config.bufferSize());
+        }
+    }
+
+    /**
+     * Calculate the network statistics extended with the round-trip
+     * latencies of a request-response test
+     *
+     * @return A LatencyTestStats instance with the calculated statistics
+     */
+    public LatencyTestStats getLatencyStats() {
+        double micros = Constants.NANOSECONDS_IN_MICROSECONDS.getValue();
+        double duration = (double) (endTime - startTime)
+            / Constants.NANOSECONDS_IN_SECONDS.getValue();
+        long transactions = histogram.getTotalCount();
+
+        return new LatencyTestStats(getStats(), transactions,
+            transactions / duration,
+            histogram.getValueAtPercentile(50.0) / micros,
+            histogram.getValueAtPercentile(99.0) / micros,
+            histogram.getValueAtPercentile(99.9) / micros,
+            histogram.getMaxValue() / micros);
+    }
+
+    /**
+     * Print network connection speed statistics, along with the round-trip
+     * latencies of a request-response test
+     */
+    @Override
+    public void printSummary() {
+        if (histogram == null || report != null) {
+            printSummary("");
+            return;
+        }
+
+        LatencyTestStats stats = getLatencyStats();
+
+        System.out.printf(echoFormat, stats.stats().totalKB(),
+            stats.stats().rate(), stats.transactions(), stats.tps(),
+            stats.p50(), stats.p99(), stats.p999(), stats.max());
+    }
+
+    /**
+     * Print network connection speed statistics prefixed with a label, along
+     * with the requested rate of a paced test
+     *
+     * @param label The label identifying this test in the output
+     */
+    @Override
+    public void printSummary(String label) {
+        if (pacer == null || report != null) {
+            super.printSummary(label);
+            return;
+        }
+
+        NetworkTestStats stats = getStats();
+
+        System.out.printf(label + pacedFormat, stats.totalKB(), stats.rate(),
+                          config.rate());
+    }
+
+    /**
+     * Writes the statistics of the test as members of a JSON object, along
+     * with the requested rate of a paced test and the round-trip latencies
+     * of a request-response test
+     *
+     * @param out The writer positioned inside the object
+     */
+    @Override
+    public void writeStats(JsonWriter out) {
+        super.writeStats(out);
+
+        if (pacer != null)
+            out.field("requested_mbps", config.rate());
+
+        if (histogram != null) {
+            LatencyTestStats stats = getLatencyStats();
+
+            out.field("transactions", stats.transactions())
+                .field("tps", stats.tps())
+                .field("p50_us", stats.p50())
+                .field("p99_us", stats.p99())
+                .field("p999_us", stats.p999())
+                .field("max_us", stats.max());
+        }
+    }
+}
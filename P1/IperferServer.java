@@ -1,4 +1,12 @@
+import java.io.UncheckedIOException;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author Arushi Mishra
@@ -11,8 +19,11 @@ public class IperferServer extends NetworkTest {
     // Server configuration object
     ServerConfig config;
 
-    // Output format
-    private final static String serverFormat = "received=%d KB rate=%f Mbps\n";
+    // Direction announced by the client of this connection
+    private final Direction direction;
+
+    // Duration of the test announced by the client in seconds
+    private final int time;
 
     /**
      * Constructs an IperferServer object with the given server configuration
@@ -20,13 +31,40 @@ public class IperferServer extends NetworkTest {
      * @param config The server configuration to use.
      */
     public IperferServer(ServerConfig config) {
-        super(serverFormat);
+        this(config, null, new ConnectionUtils.Header(Direction.UPLOAD, 0,
+                                                           0));
+    }
+
+    /**
+     * Constructs an IperferServer stream over an already accepted socket
+     *
+     * @param config The server configuration to use.
+     * @param socket The accepted socket to test on
+     * @param header The header announcing the test
+     */
+    IperferServer(ServerConfig config, Socket socket,
+                  ConnectionUtils.Header header) {
+        super(header.direction() == Direction.REVERSE
+                || header.direction() == Direction.BIDIRECTIONAL
+                ? sentFormat : receivedFormat,
+              config.bufferSize(), config.nio());
         this.config = config;
+        this.socket = socket;
+        this.direction = header.direction();
+        this.time = header.time();
+        this.warmup = toNanos(header.warmup());
+        this.reporter = IntervalReporter.create(config.report(),
+                                                summaryFormat);
+        this.report = JsonReport.create(config.report(), config);
     }
 
     /**
      * Starts the server session for handling incoming client connections
      * and conducting tests
+     * If more than one parallel stream is expected, that many connections
+     * are accepted per test and tested concurrently
+     * In concurrent mode every client connection is served on its own
+     * thread as soon as it is accepted
      */
     @Override
     public void startSession() {
@@ -38,39 +76,218 @@ public class IperferServer extends NetworkTest {
             System.out.flush();
         }));
 
+        if (config.concurrent()) {
+            serveConcurrently(serverSocket);
+            return;
+        }
+
         // accept a socket connection forever
         for(;;) {
-            socket = ConnectionUtils.getClient(serverSocket);
-            startTest();
+            if (config.parallel() > 1) {
+                List<IperferServer> streams =
+                    new ArrayList<>(config.parallel());
+
+                for (int i = 0; i < config.parallel(); i++)
+                    streams.add(accept(serverSocket));
+
+                // every test gets its own JSON report
+                ParallelTest test = new ParallelTest(
+                    streams.get(0).summaryFormat, streams, reporter,
+                    JsonReport.create(config.report(), config));
+
+                test.startSession();
+                test.printReport();
+                continue;
+            }
+
+            accept(serverSocket).serveConnection("");
+        }
+    }
+
+    /**
+     * Accepts client connections forever, serving each connection on its
+     * own thread with its own buffers and statistics
+     *
+     * @param serverSocket The server socket to accept connections on
+     */
+    private void serveConcurrently(ServerSocket serverSocket) {
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        for(;;) {
+            Socket client = ConnectionUtils.getClient(serverSocket);
+
+            // the header is read on the connection's own thread, so a slow
+            // client cannot hold up accepting the others
+            executor.execute(() -> {
+                String label = "[" + client.getRemoteSocketAddress() + "] ";
+
+                // an error only ends this connection, not the server
+                try {
+                    IperferServer connection = open(client);
+
+                    if (connection != null)
+                        connection.serveConnection(label);
+                } catch (UncheckedIOException e) {
+                    System.err.println(label + e.getMessage());
+                    closeQuietly(client);
+                }
+            });
+        }
+    }
+
+    /**
+     * Closes a socket after an error on it, ignoring any further error
+     *
+     * @param client The socket to close
+     */
+    private static void closeQuietly(Socket client) {
+        try {
+            ConnectionUtils.closeSocket(client);
+        } catch (UncheckedIOException e) {
+            // the connection has already failed
+        }
+    }
+
+    /**
+     * Accepts the next client connection that announces a valid test
+     *
+     * @param serverSocket The server socket to accept connections on
+     *
+     * @return the connection to test on
+     */
+    private IperferServer accept(ServerSocket serverSocket) {
+        IperferServer connection;
+
+        while ((connection = open(ConnectionUtils.getClient(serverSocket)))
+               == null);
+
+        return connection;
+    }
+
+    /**
+     * Reads the header announcing the test from an accepted socket
+     * Connections without a valid header, or asking a server that writes
+     * to a file to send, are closed
+     *
+     * @param client The accepted socket
+     *
+     * @return the connection to test on, or null if it was closed
+     */
+    private IperferServer open(Socket client) {
+        ConnectionUtils.Header header = ConnectionUtils.receiveHeader(client);
+
+        if (header == null) {
+            System.err.println("Error: connection did not announce a test");
+            ConnectionUtils.closeSocket(client);
+            return null;
         }
+
+        if (config.file() != null && header.direction() != Direction.UPLOAD) {
+            System.err.println("Error: a server writing to a file can only "
+                + "receive");
+            ConnectionUtils.closeSocket(client);
+            return null;
+        }
+
+        ConnectionUtils.configureSocket(client, config.options());
+
+        // echoed messages must not wait for earlier ones to be acknowledged
+        if (header.direction() == Direction.ECHO)
+            ConnectionUtils.setNoDelay(client);
+
+        return new IperferServer(config, client, header);
+    }
+
+    /**
+     * Runs the test on an accepted connection and prints its summary
+     *
+     * @param label The label identifying the connection in the output
+     */
+    private void serveConnection(String label) {
+        if (direction == Direction.BIDIRECTIONAL) {
+            runDuplexTest(label);
+        } else {
+            runTest();
+
+            // close socket connection
+            stopSession();
+
+            // print stats
+            printSummary(label);
+        }
+
+        printReport();
     }
 
     /**
      * Starts the network test
-     * Measures the data reception rate from the client
+     * Measures the data reception rate from the client, or in reverse and
+     * bidirectional mode sends data for the duration announced by the client,
+     * and in request-response mode echoes the data back to the client
+     * The warm-up period announced by the client is excluded from the
+     * statistics
      */
     @Override
     public void startTest() {
+        boolean sending = direction == Direction.REVERSE
+            || direction == Direction.BIDIRECTIONAL;
+
         // keep track of the start time
-        startTime = System.currentTimeMillis();
-        int temp = 0;
-        totalBytes = 0;
+        startTimer(sending ? toNanos(time) : 0);
 
         // keep receiving data until client connection is lost
-        do {
-            totalBytes += temp;
-        } while ((temp = ConnectionUtils.receiveData(socket)) != -1);
+        if (sending)
+            sendUntilEnd();
+        else if (direction == Direction.ECHO)
+            echoUntilClosed();
+        else if (config.file() != null)
+            receiveFileData();
+        else
+            receiveUntilClosed();
 
         // keep track of the end time
-        endTime = System.currentTimeMillis();
+        stopTimer();
+    }
+
+    /**
+     * Echoes all data received back to the client until the client
+     * connection is lost
+     */
+    private void echoUntilClosed() {
+        int temp;
 
-        // close socket connection
-        stopSession();
+        if (directBuffer != null) {
+            SocketChannel channel = socket.getChannel();
 
-        // print stats
-        printSummary();
+            while ((temp = ConnectionUtils.receiveData(channel, directBuffer))
+                   != -1) {
+                directBuffer.flip();
+                ConnectionUtils.sendFully(channel, directBuffer);
+                addBytes(temp);
+            }
 
+            return;
+        }
+
+        while ((temp = ConnectionUtils.receiveData(socket, dataBuffer)) != -1) {
+            ConnectionUtils.sendData(socket, dataBuffer, temp);
+            addBytes(temp);
+        }
     }
 
-}
+    /**
+     * Receives data over the socket's channel directly into the configured
+     * file until the client connection is lost
+     */
+    private void receiveFileData() {
+        SocketChannel channel = socket.getChannel();
+        FileChannel file = ConnectionUtils.openFile(config.file(), true);
+        long temp;
+
+        while ((temp = ConnectionUtils.receiveFile(channel, file, totalBytes))
+               > 0)
+            addBytes(temp);
 
+        ConnectionUtils.closeFile(file);
+    }
+}
@@ -0,0 +1,106 @@
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Mrigank Kumar
+ *
+ * This class represents the client side of the IPerfer UDP network test
+ * It paces datagrams to the target bitrate, stamping each one with a
+ * sequence number and the time it was sent so that the server can measure
+ * loss, reordering and jitter
+ */
+public class IperferUdpClient extends NetworkTest {
+    // Client configuration
+    ClientConfig config;
+
+    // Output format
+    private final static String clientFormat = "sent=%d KB rate=%f Mbps\n";
+
+    // Sequence number signalling the end of the test
+    final static long FIN_SEQUENCE = -1;
+
+    // The channel datagrams are sent on
+    private DatagramChannel channel;
+
+    /**
+     * Constructs an IperferUdpClient object with the given client
+     * configuration
+     *
+     * @param config The client configuration to use.
+     */
+    public IperferUdpClient(ClientConfig config) {
+        super(clientFormat, config.bufferSize(), true);
+        this.config = config;
+        this.reporter = IntervalReporter.create(config.report(), clientFormat);
+        this.report = JsonReport.create(config.report(), config);
+    }
+
+    /**
+     * Starts the a test session for the client and runs a network test
+     */
+    @Override
+    public void startSession() {
+        channel = ConnectionUtils.createChannel(config);
+
+        runTest();
+
+        // signal the end of the test and close the channel
+        stopSession();
+
+        printSummary();
+        printReport();
+    }
+
+    /**
+     * Signals the end of the test to the server and closes the channel
+     * The end is signalled several times in case some signals are lost
+     */
+    @Override
+    public void stopSession() {
+        directBuffer.putLong(0, FIN_SEQUENCE);
+
+        for (int i = 0; i < Constants.UDP_FIN_COUNT.getValue(); i++)
+            ConnectionUtils.sendDatagram(channel, directBuffer);
+
+        ConnectionUtils.closeChannel(channel);
+    }
+
+    /**
+     * Starts the network test
+     * This method sends datagrams at the target bitrate for the duration
+     * specified by the client configuration instance
+     * Every datagram has a fixed send time derived from its sequence number,
+     * so a client that falls behind catches up instead of drifting
+     */
+    @Override
+    public void startTest() {
+        // Time between datagrams in nanoseconds to meet the target bitrate
+        double bits = config.bufferSize() * Constants.BITS_IN_BYTE.getValue();
+        double gap = bits / (config.rate() * Constants.KBITS_IN_MBITS.getValue()
+            * Constants.BYTES_IN_KB.getValue())
+            * Constants.NANOSECONDS_IN_SECONDS.getValue();
+
+        long start = System.nanoTime();
+        long deadline = start + toNanos(config.time());
+        long next = start;
+        long sequence = 0;
+        long now;
+
+        while ((now = System.nanoTime()) - deadline < 0) {
+            // wait until the next datagram is due
+            if (now - next < 0) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+
+            directBuffer.putLong(0, sequence).putLong(Long.BYTES, now);
+            addBytes(ConnectionUtils.sendDatagram(channel, directBuffer));
+
+            sequence++;
+            next = start + (long) (sequence * gap);
+        }
+
+        startTime = start;
+        endTime = now;
+    }
+}
@@ -0,0 +1,244 @@
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+
+/**
+ * @author Mrigank Kumar
+ *
+ * This class represents the server side of the IPerfer UDP network test
+ * It receives the datagrams of one client test at a time and measures the
+ * received rate, datagram loss, reordering and RFC 3550 jitter
+ * A test belongs to the first client that sends data; it ends when that
+ * client signals the end, or when no datagram arrives for a while
+ */
+public class IperferUdpServer extends NetworkTest {
+    // Server configuration object
+    ServerConfig config;
+
+    // Output format for interval reports
+    private final static String serverFormat = "received=%d KB rate=%f Mbps\n";
+
+    // Output format for the test summary
+    private final static String datagramFormat = "received=%d KB rate=%f Mbps"
+        + " lost=%d/%d (%f%%) out-of-order=%d jitter=%f ms\n";
+
+    // Gain of the RFC 3550 jitter estimator
+    private final static double JITTER_GAIN = 1.0 / 16;
+
+    // The channel datagrams are received on
+    private DatagramChannel channel;
+
+    // The selector waiting for datagrams on the channel
+    private Selector selector;
+
+    // Number of datagrams from other clients ignored in the current test
+    private long ignored;
+
+    // Number of datagrams received in the current test
+    private long received;
+
+    // Highest sequence number received in the current test
+    private long highestSequence;
+
+    // Number of datagrams received after a higher sequence number
+    private long outOfOrder;
+
+    // Transit time of the previous datagram in nanoseconds
+    private long lastTransit;
+
+    // Interarrival jitter estimate in nanoseconds
+    private double jitter;
+
+    /**
+     * Constructs an IperferUdpServer object with the given server
+     * configuration
+     *
+     * @param config The server configuration to use.
+     */
+    public IperferUdpServer(ServerConfig config) {
+        super(serverFormat, Constants.UDP_MAX_DATAGRAM_SIZE.getValue(), true);
+        this.config = config;
+        this.reporter = IntervalReporter.create(config.report(), serverFormat);
+    }
+
+    /**
+     * Starts the server session, measuring one client test after another
+     */
+    @Override
+    public void startSession() {
+        channel = ConnectionUtils.createChannel(config);
+        selector = ConnectionUtils.createSelector(channel);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            ConnectionUtils.closeChannel(channel);
+            System.out.flush();
+        }));
+
+        for(;;) {
+            // every test gets its own JSON report
+            report = JsonReport.create(config.report(), config);
+
+            runTest();
+            printSummary();
+            printReport();
+        }
+    }
+
+    /**
+     * The channel is shared by all tests and closed on shutdown
+     */
+    @Override
+    public void stopSession() {}
+
+    /**
+     * Starts the network test
+     * Receives datagrams until the client signals the end of the test, or
+     * until none arrives within the idle timeout if every end signal is lost
+     */
+    @Override
+    public void startTest() {
+        received = 0;
+        highestSequence = -1;
+        outOfOrder = 0;
+        jitter = 0.0;
+        ignored = 0;
+
+        SocketAddress client = null;
+        SocketAddress sender;
+        long lastArrival = 0;
+        int size;
+
+        for(;;) {
+            // wait forever for the first datagram of the test
+            sender = ConnectionUtils.receiveDatagram(channel, selector,
+                directBuffer, client == null
+                    ? 0 : Constants.UDP_IDLE_TIMEOUT.getValue());
+
+            if (sender == null) {
+                if (client != null)
+                    break;
+
+                continue;
+            }
+
+            size = directBuffer.position();
+            if (size < Constants.UDP_HEADER_SIZE.getValue())
+                continue;
+
+            long now = System.nanoTime();
+            long sequence = directBuffer.getLong(0);
+            long sent = directBuffer.getLong(Long.BYTES);
+
+            // ignore leftover end signals from the previous test
+            if (sequence == IperferUdpClient.FIN_SEQUENCE) {
+                if (sender.equals(client))
+                    break;
+
+                continue;
+            }
+
+            // the test belongs to the first client to send data, and its
+            // intervals are measured from its first datagram
+            if (client == null) {
+                client = sender;
+                startTime = now;
+                super.startReporter();
+            } else if (!sender.equals(client)) {
+                ignored++;
+                continue;
+            }
+
+            account(sequence, now - sent);
+            addBytes(size);
+            lastArrival = now;
+        }
+
+        endTime = lastArrival;
+        stopReporter();
+
+        if (ignored > 0)
+            System.err.println("Ignored " + ignored + " datagrams from "
+                + "other clients");
+    }
+
+    /**
+     * Reporting starts with the first datagram of the test, so an idle
+     * server between tests reports no intervals
+     */
+    @Override
+    protected void startReporter() {}
+
+    /**
+     * Accounts for a received datagram
+     * The transit time is relative to the client's clock, which only shifts
+     * every transit time equally and so does not affect the jitter
+     *
+     * @param sequence the sequence number of the datagram
+     * @param transit  the transit time of the datagram in nanoseconds
+     */
+    private void account(long sequence, long transit) {
+        if (received > 0) {
+            long delta = Math.abs(transit - lastTransit);
+            jitter += (delta - jitter) * JITTER_GAIN;
+        }
+
+        lastTransit = transit;
+
+        if (sequence <= highestSequence)
+            outOfOrder++;
+        else
+            highestSequence = sequence;
+
+        received++;
+    }
+
+    /**
+     * Calculate the network statistics extended with the datagram delivery
+     * statistics of the test
+     *
+     * @return A DatagramTestStats instance with the calculated statistics
+     */
+    public DatagramTestStats getDatagramStats() {
+        long expected = highestSequence + 1;
+        long lost = Math.max(0, expected - received);
+
+        return new DatagramTestStats(getStats(), lost, expected, outOfOrder,
+            jitter / Constants.NANOSECONDS_IN_MILLISECONDS.getValue());
+    }
+
+    /**
+     * Print network connection speed and datagram delivery statistics
+     */
+    @Override
+    public void printSummary() {
+        if (report != null) {
+            printSummary("");
+            return;
+        }
+
+        DatagramTestStats stats = getDatagramStats();
+        double lossPercent = stats.expected() > 0
+            ? 100.0 * stats.lost() / stats.expected() : 0.0;
+
+        System.out.printf(datagramFormat, stats.stats().totalKB(),
+            stats.stats().rate(), stats.lost(), stats.expected(), lossPercent,
+            stats.outOfOrder(), stats.jitter());
+    }
+
+    /**
+     * Writes the network and datagram delivery statistics of the test as
+     * members of a JSON object
+     *
+     * @param out The writer positioned inside the object
+     */
+    @Override
+    public void writeStats(JsonWriter out) {
+        DatagramTestStats stats = getDatagramStats();
+
+        super.writeStats(out);
+        out.field("lost", stats.lost())
+            .field("expected", stats.expected())
+            .field("out_of_order", stats.outOfOrder())
+            .field("jitter_ms", stats.jitter());
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Mrigank Kumar
+ *
+ * Collects the results of an Iperfer test and prints them as a single JSON
+ * document, instead of the human readable summaries
+ * The document holds the configuration of the test, its start and end
+ * times in milliseconds since the epoch, the statistics of every stream
+ * under its summary label and the interval samples, if any
+ * Results are only collected when a test has finished, and samples at
+ * the reporting interval, so nothing is written while data is moving
+ */
+public class JsonReport {
+    /**
+     * A finished stream of the test
+     *
+     * @param label the summary label of the stream, empty for the only one
+     * @param test  the finished stream
+     * @param start the start time of the stream in milliseconds since the
+     *              epoch
+     * @param end   the end time of the stream in milliseconds since the
+     *              epoch
+     */
+    private record Stream(String label, NetworkTest test, long start,
+                          long end) {}
+
+    /**
+     * An interval sample
+     *
+     * @param start the start of the interval in seconds since the test
+     *              started
+     * @param end   the end of the interval in seconds since the test started
+     * @param bytes the number of bytes transferred during the interval
+     * @param mbps  the rate over the interval in megabits per second
+     */
+    record Interval(double start, double end, long bytes,
+                            double mbps) {}
+
+    // The configuration of the test
+    private final Record config;
+
+    // The finished streams, in the order they were summarized
+    private final List<Stream> streams;
+
+    // The interval samples
+    private final List<Interval> intervals;
+
+    /**
+     * Constructs an empty JsonReport
+     *
+     * @param config the configuration of the test
+     */
+    private JsonReport(Record config) {
+        this.config = config;
+        this.streams = new ArrayList<>();
+        this.intervals = new ArrayList<>();
+    }
+
+    /**
+     * Creates a JsonReport for the given configuration
+     *
+     * @param report The reporting configuration
+     * @param config The configuration of the test
+     *
+     * @return the report, or null if results are printed as summaries
+     */
+    public static JsonReport create(ReportConfig report, Record config) {
+        if (report == null || !report.json())
+            return null;
+
+        return new JsonReport(config);
+    }
+
+    /**
+     * Adds a finished stream
+     *
+     * @param label the summary label of the stream
+     * @param test  the finished stream
+     */
+    public synchronized void addStream(String label, NetworkTest test) {
+        long millis = Constants.NANOSECONDS_IN_MILLISECONDS.getValue();
+
+        // converts the monotonic clock of the test to the wall clock
+        long offset = System.currentTimeMillis() - System.nanoTime() / millis;
+
+        streams.add(new Stream(label.replaceAll("[\\[\\]]", "").trim(), test,
+                               offset + test.startTime / millis,
+                               offset + test.endTime / millis));
+    }
+
+    /**
+     * Adds an interval sample
+     *
+     * @param start the start of the interval in seconds since the test
+     *              started
+     * @param end   the end of the interval in seconds since the test started
+     * @param bytes the number of bytes transferred during the interval
+     * @param rate  the rate over the interval in megabits per second
+     */
+    public synchronized void addInterval(double start, double end,
+                                         long bytes, double rate) {
+        intervals.add(new Interval(start, end, bytes, rate));
+    }
+
+    /**
+     * Prints the document to the console
+     */
+    public synchronized void print() {
+        Long start = null;
+        Long end = null;
+
+        for (Stream stream : streams) {
+            start = start == null ? stream.start()
+                : Math.min(start, stream.start());
+            end = end == null ? stream.end() : Math.max(end, stream.end());
+        }
+
+        JsonWriter out = new JsonWriter().beginObject()
+            .field("config", config)
+            .field("start_ms", start)
+            .field("end_ms", end)
+            .beginArray("streams");
+
+        for (Stream stream : streams) {
+            out.beginObject().field("label", stream.label());
+            stream.test().writeStats(out);
+            out.endObject();
+        }
+
+        out.endArray()
+            .field("intervals", intervals)
+            .endObject();
+
+        System.out.println(out);
+    }
+}
@@ -0,0 +1,222 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.RecordComponent;
+
+/**
+ * @author Mrigank Kumar
+ *
+ * A minimal writer of JSON documents into a string
+ * Members and elements are separated automatically, records are written as
+ * objects of their components, iterables as arrays and enums as their names
+ */
+public class JsonWriter {
+    // The document written so far
+    private final StringBuilder out;
+
+    // Whether the next member or element is the first of its container
+    private boolean first;
+
+    /**
+     * Constructs a JsonWriter for an empty document
+     */
+    public JsonWriter() {
+        out = new StringBuilder();
+        first = true;
+    }
+
+    /**
+     * Starts an object as an element or as the whole document
+     *
+     * @return this writer
+     */
+    public JsonWriter beginObject() {
+        separate();
+        out.append('{');
+        first = true;
+        return this;
+    }
+
+    /**
+     * Starts an object as a member of the enclosing object
+     *
+     * @param name the name of the member
+     *
+     * @return this writer
+     */
+    public JsonWriter beginObject(String name) {
+        name(name);
+        out.append('{');
+        first = true;
+        return this;
+    }
+
+    /**
+     * Ends the current object
+     *
+     * @return this writer
+     */
+    public JsonWriter endObject() {
+        out.append('}');
+        first = false;
+        return this;
+    }
+
+    /**
+     * Starts an array as a member of the enclosing object
+     *
+     * @param name the name of the member
+     *
+     * @return this writer
+     */
+    public JsonWriter beginArray(String name) {
+        name(name);
+        out.append('[');
+        first = true;
+        return this;
+    }
+
+    /**
+     * Ends the current array
+     *
+     * @return this writer
+     */
+    public JsonWriter endArray() {
+        out.append(']');
+        first = false;
+        return this;
+    }
+
+    /**
+     * Writes a member of the enclosing object
+     *
+     * @param name  the name of the member
+     * @param value the value of the member, see {@link #value(Object)}
+     *
+     * @return this writer
+     */
+    public JsonWriter field(String name, Object value) {
+        name(name);
+        first = true;
+        return value(value);
+    }
+
+    /**
+     * Writes a value as an element or as the whole document
+     * Numbers that are not finite are written as null
+     *
+     * @param value a string, number, boolean, enum, record, iterable or null
+     *
+     * @return this writer
+     */
+    public JsonWriter value(Object value) {
+        separate();
+
+        if (value == null)
+            out.append("null");
+        else if (value instanceof Double || value instanceof Float)
+            out.append(Double.isFinite(((Number) value).doubleValue())
+                       ? value.toString() : "null");
+        else if (value instanceof Number || value instanceof Boolean)
+            out.append(value);
+        else if (value instanceof Enum)
+            string(((Enum<?>) value).name());
+        else if (value instanceof Record)
+            record((Record) value);
+        else if (value instanceof Iterable)
+            array((Iterable<?>) value);
+        else
+            string(value.toString());
+
+        first = false;
+        return this;
+    }
+
+    /**
+     * Writes a record as an object of its components
+     *
+     * @param record the record to write
+     */
+    private void record(Record record) {
+        out.append('{');
+        first = true;
+
+        for (RecordComponent component
+             : record.getClass().getRecordComponents()) {
+            try {
+                field(component.getName(),
+                      component.getAccessor().invoke(record));
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                e.printStackTrace();
+                System.err.println("Error writing JSON: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        out.append('}');
+    }
+
+    /**
+     * Writes the elements of an iterable as an array
+     *
+     * @param values the elements to write
+     */
+    private void array(Iterable<?> values) {
+        out.append('[');
+        first = true;
+
+        for (Object value : values)
+            value(value);
+
+        out.append(']');
+    }
+
+    /**
+     * Writes a string with the characters JSON requires escaped
+     *
+     * @param value the string to write
+     */
+    private void string(String value) {
+        out.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\')
+                out.append('\\').append(c);
+            else if (c < ' ')
+                out.append(String.format("\\u%04x", (int) c));
+            else
+                out.append(c);
+        }
+
+        out.append('"');
+    }
+
+    /**
+     * Writes the name of a member
+     *
+     * @param name the name of the member
+     */
+    private void name(String name) {
+        separate();
+        string(name);
+        out.append(':');
+    }
+
+    /**
+     * Separates the next member or element from the previous one
+     */
+    private void separate() {
+        if (!first)
+            out.append(',');
+    }
+
+    /**
+     * Returns the document written so far
+     *
+     * @return the document
+     */
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
@@ -1,6 +1,12 @@
 import java.net.Socket;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
 import java.io.OutputStream;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 
 /**
  * @author Mrigank Kumar
@@ -11,28 +17,134 @@ import java.io.InputStream;
 public abstract class NetworkTest {
     protected record NetworkTestStats(long totalKB, double rate) {}
 
+    /**
+     * Network statistics extended with the round-trip latencies of a
+     * request-response test
+     *
+     * @param stats        the amount of data sent and the rate
+     * @param transactions the number of completed request-response pairs
+     * @param tps          the number of transactions per second
+     * @param p50          the median latency in microseconds
+     * @param p99          the 99th percentile latency in microseconds
+     * @param p999         the 99.9th percentile latency in microseconds
+     * @param max          the largest latency in microseconds
+     */
+    protected record LatencyTestStats(NetworkTestStats stats,
+                                      long transactions, double tps,
+                                      double p50, double p99, double p999,
+                                      double max) {}
+
+    // Output format of a test that sends data
+    protected final static String sentFormat = "sent=%d KB rate=%f Mbps\n";
+
+    // Output format of a test that receives data
+    protected final static String receivedFormat =
+        "received=%d KB rate=%f Mbps\n";
+
+    // Labels of the sending and receiving halves of a bidirectional test
+    private final static String sendLabel = "[TX] ";
+    private final static String receiveLabel = "[RX] ";
+
+    /**
+     * Network statistics extended with the datagram delivery statistics
+     * of a UDP test
+     *
+     * @param stats      the amount of data received and the rate
+     * @param lost       the number of datagrams lost
+     * @param expected   the number of datagrams sent by the client
+     * @param outOfOrder the number of datagrams received out of order
+     * @param jitter     the RFC 3550 interarrival jitter in milliseconds
+     */
+    protected record DatagramTestStats(NetworkTestStats stats, long lost,
+                                       long expected, long outOfOrder,
+                                       double jitter) {}
+
+    // Handle for publishing totalBytes to reporting threads with release
+    // stores, which cost no more than plain stores in the hot loop
+    private final static VarHandle TOTAL_BYTES;
+
+    // Initialize TOTAL_BYTES
+    static {
+        try {
+            TOTAL_BYTES = MethodHandles.lookup().findVarHandle(
+                NetworkTest.class, "totalBytes", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     // The socket used for communication
     protected Socket socket;
 
-    // The start time of the network test
-    protected long startTime;
+    // The start time of the network test in nanoseconds, excluding the
+    // warm-up period
+    protected volatile long startTime;
 
-    // The end time of the network test
+    // The end time of the network test in nanoseconds
     protected long endTime;
 
     // The total number of bytes sent or received during the test
     protected long totalBytes;
 
+    // The number of bytes sent or received during the warm-up period,
+    // which are excluded from the statistics
+    protected volatile long omittedBytes;
+
+    // The warm-up period excluded from the statistics in nanoseconds
+    protected long warmup;
+
+    // Whether the test should keep sending, cleared by the timer once the
+    // duration of the test has elapsed
+    protected volatile boolean running;
+
+    // The thread ending the warm-up period and the test, null if none runs
+    private Thread timer;
+
     // The format string to print out network statistics
     protected final String summaryFormat;
 
+    // Buffer for storing data to be sent or received, owned by this test so
+    // that concurrent tests never share it, null if NIO is used
+    protected final byte[] dataBuffer;
+
+    // Direct buffer used by the NIO transport, null if NIO is not used
+    protected final ByteBuffer directBuffer;
+
+    // Reports statistics periodically while the test runs, null if disabled
+    protected IntervalReporter reporter;
+
+    // Whether the reporter has been started and not stopped yet
+    private boolean reporting;
+
+    // Paces the data sent to a target rate, null to send as fast as possible
+    protected TokenBucket pacer;
+
+    // Collects the results as JSON instead of printing summaries, null to
+    // print summaries
+    protected JsonReport report;
+
     /**
      * Default NetworkTest constructor, initializes the summary format string
      *
      * @param  format The summary format string
      */
     protected NetworkTest(String format) {
+        this(format, Constants.CHUNK_SIZE.getValue(), false);
+    }
+
+    /**
+     * NetworkTest constructor that also allocates the buffer data is sent
+     * from and received into
+     *
+     * @param  format     The summary format string
+     * @param  bufferSize The size of the buffer in bytes
+     * @param  direct     true to allocate a direct buffer for the NIO
+     *                    transport, false for a heap buffer
+     */
+    protected NetworkTest(String format, int bufferSize, boolean direct) {
         summaryFormat = format;
+        dataBuffer = direct ? null : new byte[bufferSize];
+        directBuffer = direct ? ByteBuffer.allocateDirect(bufferSize) : null;
     }
 
     /**
@@ -56,13 +168,308 @@ public abstract class NetworkTest {
      */
     public abstract void startTest();
 
+    /**
+     * Runs the network test, reporting its progress periodically
+     * if interval reporting is enabled
+     */
+    public void runTest() {
+        totalBytes = 0;
+        omittedBytes = 0;
+
+        startReporter();
+
+        try {
+            startTest();
+        } finally {
+            // a test that failed did not stop its timer
+            joinTimer();
+            stopReporter();
+        }
+    }
+
+    /**
+     * Starts reporting the progress of the test, if interval reporting is
+     * enabled
+     * Tests that wait for their peer before they begin override this to
+     * start reporting once the peer arrives instead
+     */
+    protected void startReporter() {
+        if (reporter != null && !reporting) {
+            reporter.start(this);
+            reporting = true;
+        }
+    }
+
+    /**
+     * Stops reporting the progress of the test, if it is being reported
+     */
+    protected void stopReporter() {
+        if (reporting) {
+            reporter.stop();
+            reporting = false;
+        }
+    }
+
+    /**
+     * Runs a bidirectional test over the socket
+     * This test sends until its end time while a DuplexReceiver receives
+     * on another thread, then the summaries of both halves are printed
+     *
+     * @param label The label identifying the test in the output
+     */
+    protected void runDuplexTest(String label) {
+        DuplexReceiver receiver = directBuffer != null
+            ? new DuplexReceiver(receivedFormat, socket,
+                                 directBuffer.capacity(), true)
+            : new DuplexReceiver(receivedFormat, socket, dataBuffer.length,
+                                 false);
+        receiver.warmup = warmup;
+        receiver.report = report;
+        UncheckedIOException[] failure = new UncheckedIOException[1];
+
+        // an error receiving is passed to this thread, to fail only this test
+        Thread thread = new Thread(() -> {
+            try {
+                receiver.startSession();
+            } catch (UncheckedIOException e) {
+                failure[0] = e;
+            }
+        });
+
+        thread.start();
+        runTest();
+
+        // let the other end know this end is done sending
+        ConnectionUtils.shutdownOutput(socket);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure[0] != null)
+            throw failure[0];
+
+        stopSession();
+
+        printSummary(label + sendLabel);
+        receiver.printSummary(label + receiveLabel);
+    }
+
+    /**
+     * Starts the test clock and a timer thread that ends the warm-up period
+     * and then the test
+     * At the end of the warm-up period the timer restarts the clock and
+     * records the bytes transferred so far, to exclude them from the
+     * statistics, so the loops moving data never read the clock themselves
+     *
+     * @param duration the duration of the test after the warm-up period in
+     *                 nanoseconds, or 0 to run until the other end stops
+     */
+    protected void startTimer(long duration) {
+        long begin = System.nanoTime();
+
+        startTime = begin;
+        running = true;
+
+        if (warmup == 0 && duration == 0)
+            return;
+
+        timer = new Thread(() -> {
+            if (warmup > 0) {
+                // a test that ended during the warm-up keeps its start time
+                if (!sleepUntil(begin + warmup) || !running)
+                    return;
+
+                omittedBytes = sampleBytes();
+                startTime = System.nanoTime();
+            }
+
+            if (duration > 0 && sleepUntil(begin + warmup + duration))
+                running = false;
+        });
+
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    /**
+     * Stops the test clock, after the timer thread has finished so that it
+     * cannot move the start time past the end time
+     */
+    protected void stopTimer() {
+        joinTimer();
+        endTime = System.nanoTime();
+    }
+
+    /**
+     * Ends the test and waits for the timer thread to finish
+     */
+    private void joinTimer() {
+        running = false;
+
+        if (timer == null)
+            return;
+
+        timer.interrupt();
+
+        try {
+            timer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        timer = null;
+    }
+
+    /**
+     * Sleeps until the given time, unless interrupted
+     *
+     * @param deadline the time to sleep until in nanoseconds
+     *
+     * @return true if the time was reached, false if interrupted
+     */
+    private static boolean sleepUntil(long deadline) {
+        long remaining;
+
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (Thread.interrupted())
+                return false;
+
+            LockSupport.parkNanos(remaining);
+        }
+
+        return true;
+    }
+
+    /**
+     * Converts a duration in seconds to nanoseconds
+     *
+     * @param seconds the duration in seconds
+     *
+     * @return the duration in nanoseconds
+     */
+    protected static long toNanos(int seconds) {
+        return (long) seconds * Constants.NANOSECONDS_IN_SECONDS.getValue();
+    }
+
+    /**
+     * Sends data over the socket until the timer stops the test, paced by
+     * the pacer if there is one
+     * The NIO transport is used if this test has a direct buffer
+     */
+    protected void sendUntilEnd() {
+        if (directBuffer != null) {
+            SocketChannel channel = socket.getChannel();
+            ByteBuffer[] buffers = ConnectionUtils.gatherBuffers(directBuffer);
+            long sent;
+
+            while (running) {
+                sent = ConnectionUtils.sendData(channel, buffers);
+                addBytes(sent);
+
+                if (pacer != null)
+                    pacer.consume(sent);
+            }
+
+            return;
+        }
+
+        while (running) {
+            ConnectionUtils.sendData(socket, dataBuffer);
+            addBytes(dataBuffer.length);
+
+            if (pacer != null)
+                pacer.consume(dataBuffer.length);
+        }
+    }
+
+    /**
+     * Receives data over the socket until the other end stops sending
+     * The NIO transport is used if this test has a direct buffer
+     */
+    protected void receiveUntilClosed() {
+        int temp;
+
+        if (directBuffer != null) {
+            SocketChannel channel = socket.getChannel();
+
+            while ((temp = ConnectionUtils.receiveData(channel, directBuffer))
+                   != -1)
+                addBytes(temp);
+
+            return;
+        }
+
+        while ((temp = ConnectionUtils.receiveData(socket, dataBuffer)) != -1)
+            addBytes(temp);
+    }
+
+    /**
+     * Accounts for bytes sent or received by the test
+     * Only the thread running the test may call this method
+     *
+     * @param bytes the number of bytes sent or received
+     */
+    protected final void addBytes(long bytes) {
+        TOTAL_BYTES.setRelease(this, totalBytes + bytes);
+    }
+
+    /**
+     * Reads the number of bytes sent or received so far, safe to call
+     * from any thread while the test runs
+     *
+     * @return the number of bytes sent or received so far
+     */
+    public long sampleBytes() {
+        return (long) TOTAL_BYTES.getAcquire(this);
+    }
+
     /**
      * Print network connection speed statistics
      */
     public void printSummary() {
+        printSummary("");
+    }
+
+    /**
+     * Prints the JSON report of the test, if results are collected as JSON
+     */
+    protected void printReport() {
+        if (report != null)
+            report.print();
+    }
+
+    /**
+     * Print network connection speed statistics prefixed with a label, or
+     * add them to the JSON report
+     *
+     * @param label The label identifying this test in the output
+     */
+    public void printSummary(String label) {
+        if (report != null) {
+            report.addStream(label, this);
+            return;
+        }
+
+        NetworkTestStats stats = getStats();
+
+        System.out.printf(label + summaryFormat, stats.totalKB(), stats.rate());
+    }
+
+    /**
+     * Writes the statistics of the test as members of a JSON object
+     *
+     * @param out The writer positioned inside the object
+     */
+    public void writeStats(JsonWriter out) {
         NetworkTestStats stats = getStats();
 
-        System.out.printf(summaryFormat, stats.totalKB(), stats.rate());
+        out.field("bytes", totalBytes - omittedBytes)
+            .field("seconds", (double) (endTime - startTime)
+                / Constants.NANOSECONDS_IN_SECONDS.getValue())
+            .field("mbps", stats.rate());
     }
 
     /**
@@ -72,18 +479,22 @@ public abstract class NetworkTest {
      * @return A NetworkTestStats instance with the calculated statistics
      */
     public NetworkTestStats getStats() {
-        // Time delta in milliseconds
+        // Time delta in nanoseconds
         double delta = endTime - startTime;
 
         // Duration in seconds
-        double duration = delta / Constants.MILLISECONDS_IN_SECONDS.getValue();
+        double duration = delta / Constants.NANOSECONDS_IN_SECONDS.getValue();
 
-        // Total data in kilobytes
-        long totalKB = totalBytes / Constants.BYTES_IN_KB.getValue();
+        // Total data in kilobytes, excluding the warm-up period
+        long totalKB = (totalBytes - omittedBytes)
+            / Constants.BYTES_IN_KB.getValue();
 
-        // Rate in megabits per second
-        double rate = (totalKB * Constants.BITS_IN_BYTE.getValue()) / duration;
-        rate /= Constants.KBITS_IN_MBITS.getValue();
+        // Rate in megabits per second, none if the test took no time
+        double rate = 0.0;
+        if (duration > 0) {
+            rate = (totalKB * Constants.BITS_IN_BYTE.getValue()) / duration;
+            rate /= Constants.KBITS_IN_MBITS.getValue();
+        }
 
         return new NetworkTestStats(totalKB, rate);
     }
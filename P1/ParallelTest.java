@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Mrigank Kumar
+ *
+ * This class runs several network test streams concurrently
+ * Each stream is driven on its own thread, and once all streams finish the
+ * per-stream statistics are printed followed by the aggregate statistics
+ * over all streams
+ */
+public class ParallelTest extends NetworkTest {
+    // Label format for the per-stream summaries
+    private final static String streamLabel = "[%d] ";
+
+    // Label for the aggregate summary
+    private final static String sumLabel = "[SUM] ";
+
+    // The streams to run concurrently
+    private final List<? extends NetworkTest> streams;
+
+    /**
+     * Constructs a ParallelTest over the given streams
+     * Every stream must already be connected before the test starts
+     *
+     * @param format   The summary format string
+     * @param streams  The streams to run concurrently
+     * @param reporter The reporter for the aggregate, or null if disabled
+     * @param report   The JSON report collecting the results of every stream
+     *                 and the aggregate, or null to print summaries
+     */
+    public ParallelTest(String format, List<? extends NetworkTest> streams,
+                        IntervalReporter reporter, JsonReport report) {
+        super(format);
+        this.streams = streams;
+        this.reporter = reporter;
+        this.report = report;
+
+        for (NetworkTest stream : streams)
+            stream.report = report;
+    }
+
+    /**
+     * Runs all streams to completion and prints the summary
+     */
+    @Override
+    public void startSession() {
+        runTest();
+        printSummary();
+    }
+
+    /**
+     * Starts every stream on its own thread and waits for all of them
+     * The aggregate test spans from the earliest stream start to the latest
+     * stream end, and accounts for the bytes of all streams
+     */
+    @Override
+    public void startTest() {
+        List<Thread> threads = new ArrayList<>(streams.size());
+
+        for (NetworkTest stream : streams) {
+            Thread thread = new Thread(() -> {
+                stream.startTest();
+                stream.stopSession();
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        startTime = Long.MAX_VALUE;
+        endTime = Long.MIN_VALUE;
+        totalBytes = 0;
+
+        for (NetworkTest stream : streams) {
+            startTime = Math.min(startTime, stream.startTime);
+            endTime = Math.max(endTime, stream.endTime);
+            totalBytes += stream.totalBytes - stream.omittedBytes;
+        }
+    }
+
+    /**
+     * Reads the number of bytes sent or received so far over all streams
+     *
+     * @return the number of bytes sent or received so far
+     */
+    @Override
+    public long sampleBytes() {
+        long bytes = 0;
+
+        for (NetworkTest stream : streams)
+            bytes += stream.sampleBytes();
+
+        return bytes;
+    }
+
+    /**
+     * Streams own their sockets and close them when they finish,
+     * so there is nothing to close here
+     */
+    @Override
+    public void stopSession() {}
+
+    /**
+     * Print the statistics of every stream, followed by the aggregate
+     */
+    @Override
+    public void printSummary() {
+        for (int i = 0; i < streams.size(); i++)
+            streams.get(i).printSummary(String.format(streamLabel, i + 1));
+
+        printSummary(sumLabel);
+    }
+}
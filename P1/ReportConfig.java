@@ -0,0 +1,16 @@
+/**
+ * @author Mrigank Kumar
+ *
+ * Represents configuration parameters for reporting on an Iperfer test
+ *
+ * This record represents how the progress of a test is reported while it
+ * runs, including the reporting interval, the file that the
+ * per-interval samples are written to and whether the results are printed
+ * as a JSON document
+ *
+ * @param interval the reporting interval in seconds, or 0 to disable
+ * @param output   the file to write samples to, or null for console only
+ * @param json     whether to print the results and samples as a single
+ *                 JSON document instead of human readable summaries
+ */
+public record ReportConfig(double interval, String output, boolean json) {}
@@ -4,8 +4,23 @@
  * Represents configuration parameters for an Iperfer server
  *
  * This record represents a configuration for an Iperfer server, including
- * the port number to listen on.
+ * the port number to listen on, the number of parallel streams
+ * accepted per test, whether clients are served concurrently,
+ * the transport, the file to store received data in, if any,
+ * whether UDP datagrams are received instead of TCP streams,
+ * the socket tuning options and how progress is reported
  *
  * @param listenPort the port number of the server
+ * @param parallel   the number of parallel streams accepted per test
+ * @param concurrent whether every client is served on its own thread
+ * @param nio        whether to use the NIO SocketChannel transport
+ * @param bufferSize the size of the buffer data is received into in bytes
+ * @param file       the file to store received data in, or null to discard
+ * @param udp        whether to receive UDP datagrams instead of TCP streams
+ * @param options    the tuning options applied to every TCP socket
+ * @param report     the configuration for reporting progress
  */
-public record ServerConfig(int listenPort) {}
+public record ServerConfig(int listenPort, int parallel, boolean concurrent,
+                           boolean nio, int bufferSize, String file,
+                           boolean udp, SocketOptions options,
+                           ReportConfig report) {}
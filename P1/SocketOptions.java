@@ -0,0 +1,15 @@
+/**
+ * @author Mrigank Kumar
+ *
+ * Represents the tuning options applied to the sockets of an Iperfer test
+ *
+ * This record represents the socket options that are set on every TCP
+ * socket of a test, including the send and receive buffer sizes and
+ * whether Nagle's algorithm is disabled
+ *
+ * @param sendBuffer    the SO_SNDBUF size in bytes, or 0 for the default
+ * @param receiveBuffer the SO_RCVBUF size in bytes, or 0 for the default
+ * @param noDelay       whether TCP_NODELAY is set
+ */
+public record SocketOptions(int sendBuffer, int receiveBuffer,
+                            boolean noDelay) {}
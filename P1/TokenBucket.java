@@ -0,0 +1,62 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Mrigank Kumar
+ *
+ * Paces a sender to a target rate with a token bucket
+ * Tokens are bytes, added at the target rate up to the burst size, and
+ * every write takes the bytes it actually sent, so partial writes are
+ * accounted exactly
+ * A write may take more tokens than are available, after which the sender
+ * sleeps until the bucket is no longer in debt
+ */
+public class TokenBucket {
+    // Rate tokens are added at in bytes per nanosecond
+    private final double rate;
+
+    // Largest number of tokens the bucket holds
+    private final double burst;
+
+    // Tokens currently available, negative while in debt
+    private double tokens;
+
+    // Time tokens were last added at in nanoseconds
+    private long lastTime;
+
+    /**
+     * Constructs a full TokenBucket
+     *
+     * @param rate  the target rate in megabits per second
+     * @param burst the largest number of bytes sent at once after idling
+     */
+    public TokenBucket(double rate, int burst) {
+        this.rate = rate * Constants.KBITS_IN_MBITS.getValue()
+            * Constants.BYTES_IN_KB.getValue()
+            / Constants.BITS_IN_BYTE.getValue()
+            / Constants.NANOSECONDS_IN_SECONDS.getValue();
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastTime = System.nanoTime();
+    }
+
+    /**
+     * Takes tokens for sent bytes, sleeping until the bucket is no longer
+     * in debt
+     *
+     * @param bytes the number of bytes sent
+     */
+    public void consume(long bytes) {
+        long now = System.nanoTime();
+
+        tokens = Math.min(burst, tokens + (now - lastTime) * rate) - bytes;
+        lastTime = now;
+
+        if (tokens >= 0)
+            return;
+
+        long deadline = now + (long) (-tokens / rate);
+
+        while ((now = System.nanoTime()) - deadline < 0)
+            LockSupport.parkNanos(deadline - now);
+    }
+}
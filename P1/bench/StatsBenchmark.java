@@ -0,0 +1,74 @@
+package iperfer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Mrigank Kumar
+ *
+ * Benchmarks the byte accounting done for every write of a network test
+ * and the calculation of its statistics
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatsBenchmark {
+    // A network test that never runs, holding the counters to measure
+    private NetworkTest test;
+
+    /**
+     * Creates a test that transferred data for ten seconds
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+        test = new NetworkTest(NetworkTest.sentFormat) {
+            @Override
+            public void startSession() {}
+
+            @Override
+            public void startTest() {}
+        };
+
+        test.startTime = 0;
+        test.endTime = 10L * Constants.NANOSECONDS_IN_SECONDS.getValue();
+        test.totalBytes = 5_000_000_000L;
+    }
+
+    /**
+     * Accounts for one write
+     */
+    @Benchmark
+    public void addBytes() {
+        test.addBytes(Constants.CHUNK_SIZE.getValue());
+    }
+
+    /**
+     * Reads the byte count the way the interval reporter does
+     */
+    @Benchmark
+    public long sampleBytes() {
+        return test.sampleBytes();
+    }
+
+    /**
+     * Calculates the statistics of the test
+     */
+    @Benchmark
+    public Object getStats() {
+        return test.getStats();
+    }
+}
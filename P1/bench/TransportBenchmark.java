@@ -0,0 +1,252 @@
+package iperfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Mrigank Kumar
+ *
+ * Benchmarks the send and receive paths of ConnectionUtils over a loopback
+ * connection, for the stream transport and the NIO transport with heap or
+ * direct buffers, across write sizes
+ * Every benchmark also counts the bytes it moved, reported as "bytes" in
+ * bytes per second next to the calls per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+    /**
+     * A loopback connection whose far end discards everything it receives
+     * and keeps sending data back, so both paths of the near end can be
+     * measured
+     * The far end uses plain streams, so closing the connection does not go
+     * through the error handling of ConnectionUtils
+     */
+    @State(Scope.Thread)
+    public static abstract class Loopback {
+        // The write size in bytes
+        @Param({"1000", "8192", "65536", "131072"})
+        public int size;
+
+        // The near end of the connection, created by ConnectionUtils
+        protected Socket socket;
+
+        // The listening socket and the far end of the connection
+        private ServerSocket listener;
+        private Socket peer;
+
+        // Threads draining and feeding the far end
+        private Thread sink;
+        private Thread source;
+
+        /**
+         * Connects the near end over loopback with the given transport and
+         * starts the far end
+         *
+         * @param nio whether the near end uses the NIO transport
+         *
+         * @throws IOException if the far end could not be set up
+         */
+        protected void open(boolean nio) throws IOException {
+            listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            socket = ConnectionUtils.createSocket(new ClientConfig(
+                listener.getInetAddress().getHostAddress(),
+                listener.getLocalPort(), 0, 0, 1, nio, size, null, false, 0.0,
+                0, Direction.UPLOAD, new SocketOptions(0, 0, false), 0,
+                new ReportConfig(0.0, null, false)));
+            peer = listener.accept();
+
+            sink = new Thread(this::drain);
+            source = new Thread(this::feed);
+            sink.start();
+            source.start();
+        }
+
+        /**
+         * Discards all data received by the far end until the connection
+         * is closed
+         */
+        private void drain() {
+            byte[] buffer = new byte[Constants.NIO_BUFFER_SIZE.getValue()];
+
+            try {
+                InputStream in = peer.getInputStream();
+
+                while (in.read(buffer) != -1)
+                    ;
+            } catch (IOException e) {
+                // the connection was closed
+            }
+        }
+
+        /**
+         * Sends data from the far end until the connection is closed
+         */
+        private void feed() {
+            byte[] buffer = new byte[Constants.NIO_BUFFER_SIZE.getValue()];
+
+            try {
+                OutputStream out = peer.getOutputStream();
+
+                for (;;)
+                    out.write(buffer);
+            } catch (IOException e) {
+                // the connection was closed
+            }
+        }
+
+        /**
+         * Closes both ends of the connection and waits for the far end to
+         * stop
+         *
+         * @throws IOException          if the far end could not be closed
+         * @throws InterruptedException if interrupted while waiting
+         */
+        @TearDown(Level.Trial)
+        public void close() throws IOException, InterruptedException {
+            ConnectionUtils.closeSocket(socket);
+            peer.close();
+            listener.close();
+            sink.join();
+            source.join();
+        }
+    }
+
+    /**
+     * A loopback connection using the stream transport
+     */
+    public static class StreamLoopback extends Loopback {
+        // The buffer data is sent from and received into
+        byte[] data;
+
+        /**
+         * Connects and allocates the buffer
+         *
+         * @throws IOException if the far end could not be set up
+         */
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            data = new byte[size];
+            open(false);
+        }
+    }
+
+    /**
+     * A loopback connection using the NIO transport
+     */
+    public static class ChannelLoopback extends Loopback {
+        // Whether the buffer is a direct buffer instead of a heap buffer
+        @Param({"true", "false"})
+        public boolean direct;
+
+        // The channel of the connection
+        SocketChannel channel;
+
+        // The buffer data is received into, and the views of it that data
+        // is sent from
+        ByteBuffer buffer;
+        ByteBuffer[] buffers;
+
+        /**
+         * Connects and allocates the buffer
+         *
+         * @throws IOException if the far end could not be set up
+         */
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            buffer = direct ? ByteBuffer.allocateDirect(size)
+                : ByteBuffer.allocate(size);
+            buffers = ConnectionUtils.gatherBuffers(buffer);
+            open(true);
+            channel = socket.getChannel();
+        }
+    }
+
+    /**
+     * Counts the bytes moved by a benchmark, reported per second
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        // The number of bytes moved in the current iteration
+        public long bytes;
+
+        /**
+         * Resets the count before every iteration
+         */
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Sends one buffer with the stream transport
+     */
+    @Benchmark
+    public void streamSend(StreamLoopback loopback, Bytes bytes) {
+        ConnectionUtils.sendData(loopback.socket, loopback.data);
+        bytes.bytes += loopback.data.length;
+    }
+
+    /**
+     * Receives up to one buffer with the stream transport
+     */
+    @Benchmark
+    public int streamReceive(StreamLoopback loopback, Bytes bytes) {
+        int received = ConnectionUtils.receiveData(loopback.socket,
+                                                   loopback.data);
+
+        bytes.bytes += received;
+        return received;
+    }
+
+    /**
+     * Sends with one gathering write of the NIO transport
+     */
+    @Benchmark
+    public long channelSend(ChannelLoopback loopback, Bytes bytes) {
+        long sent = ConnectionUtils.sendData(loopback.channel,
+                                             loopback.buffers);
+
+        bytes.bytes += sent;
+        return sent;
+    }
+
+    /**
+     * Receives up to one buffer with the NIO transport
+     */
+    @Benchmark
+    public int channelReceive(ChannelLoopback loopback, Bytes bytes) {
+        int received = ConnectionUtils.receiveData(loopback.channel,
+                                                   loopback.buffer);
+
+        bytes.bytes += received;
+        return received;
+    }
+}
@@ -0,0 +1,387 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * A filter deciding which packets are captured, evaluated on the raw bytes
+ * of an Ethernet frame so packets that are not captured are never parsed
+ * or serialized
+ * Expressions follow a small subset of the tcpdump syntax: primitives
+ * combined with "and", "or", "not" and parentheses, where "and" binds
+ * tighter than "or"
+ * The primitives are
+ *   arp, ip, ether proto N
+ *   icmp, tcp, udp, ip proto N
+ *   [src|dst] host A.B.C.D
+ *   [src|dst] net A.B.C.D/LEN
+ *   [src|dst] port N, matching TCP and UDP ports
+ *   rip, the same as "udp port 520"
+ * Address and port primitives only match IPv4 packets
+ */
+public class CaptureFilter {
+    /**
+     * A test on the bytes of a frame
+     */
+    private interface Test {
+        /**
+         * @param frame  array holding the frame
+         * @param offset offset of the frame in the array
+         * @param length length of the frame
+         *
+         * @return true if the frame passes the test
+         */
+        boolean test(byte[] frame, int offset, int length);
+    }
+
+    /** Offset of the EtherType in an untagged frame */
+    private static final int ETHERTYPE_OFFSET = 12;
+
+    /** Length of an untagged Ethernet header and of a VLAN tag */
+    private static final int ETHER_HEADER_LEN = 14;
+    private static final int VLAN_TAG_LEN = 4;
+
+    /** Length of an IPv4 header without options */
+    private static final int IPV4_HEADER_LEN = 20;
+
+    private final String expression;
+    private final Test test;
+
+    /** Tokens of the expression being parsed, and the next one to parse */
+    private final List<String> tokens;
+    private int next;
+
+    /**
+     * Parses a filter expression
+     *
+     * @param expression the filter expression
+     *
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public CaptureFilter(String expression) {
+        this.expression = expression;
+        this.tokens = tokenize(expression);
+        this.next = 0;
+
+        if (tokens.isEmpty())
+            throw new IllegalArgumentException("empty filter");
+
+        this.test = parseOr();
+
+        if (next < tokens.size())
+            throw new IllegalArgumentException("unexpected '"
+                                               + tokens.get(next) + "'");
+    }
+
+    /**
+     * Checks whether a frame should be captured
+     *
+     * @param frame  array holding the frame
+     * @param offset offset of the frame in the array
+     * @param length length of the frame
+     *
+     * @return true if the frame matches the filter
+     */
+    public boolean matches(byte[] frame, int offset, int length) {
+        return test.test(frame, offset, length);
+    }
+
+    @Override
+    public String toString() { return expression; }
+
+    /**
+     * Splits an expression into words and parentheses
+     */
+    private static List<String> tokenize(String expression) {
+        List<String> tokens = new ArrayList<String>();
+
+        for (String word : expression.replace("(", " ( ")
+                                     .replace(")", " ) ")
+                                     .trim()
+                                     .split("\\s+")) {
+            if (!word.isEmpty())
+                tokens.add(word.toLowerCase());
+        }
+
+        return tokens;
+    }
+
+    private boolean accept(String token) {
+        if (next < tokens.size() && tokens.get(next).equals(token)) {
+            next++;
+            return true;
+        }
+
+        return false;
+    }
+
+    private String take(String what) {
+        if (next >= tokens.size())
+            throw new IllegalArgumentException("missing " + what);
+
+        return tokens.get(next++);
+    }
+
+    private Test parseOr() {
+        Test left = parseAnd();
+
+        while (accept("or") || accept("||")) {
+            Test l = left;
+            Test r = parseAnd();
+
+            left = (f, o, n) -> l.test(f, o, n) || r.test(f, o, n);
+        }
+
+        return left;
+    }
+
+    private Test parseAnd() {
+        Test left = parseNot();
+
+        while (accept("and") || accept("&&")) {
+            Test l = left;
+            Test r = parseNot();
+
+            left = (f, o, n) -> l.test(f, o, n) && r.test(f, o, n);
+        }
+
+        return left;
+    }
+
+    private Test parseNot() {
+        if (accept("not") || accept("!")) {
+            Test t = parseNot();
+
+            return (f, o, n) -> !t.test(f, o, n);
+        }
+
+        if (accept("(")) {
+            Test t = parseOr();
+
+            if (!accept(")"))
+                throw new IllegalArgumentException("missing ')'");
+
+            return t;
+        }
+
+        return parsePrimitive();
+    }
+
+    private Test parsePrimitive() {
+        String word = take("primitive");
+
+        switch (word) {
+        case "arp":
+            return etherType(Ethernet.TYPE_ARP);
+        case "ip":
+            if (accept("proto"))
+                return ipProtocol((byte) parseNumber(take("protocol"), 0xff));
+            return etherType(Ethernet.TYPE_IPv4);
+        case "ether":
+            expect("proto");
+            return etherType((short) parseNumber(take("EtherType"), 0xffff));
+        case "icmp":
+            return ipProtocol(IPv4.PROTOCOL_ICMP);
+        case "tcp":
+            return ipProtocol(IPv4.PROTOCOL_TCP);
+        case "udp":
+            return ipProtocol(IPv4.PROTOCOL_UDP);
+        case "rip":
+            return and(ipProtocol(IPv4.PROTOCOL_UDP), port(UDP.RIP_PORT, true,
+                                                          true));
+        case "src":
+        case "dst":
+            return parseAddressOrPort(word.equals("src"), word.equals("dst"));
+        case "host":
+        case "net":
+        case "port":
+            next--;
+            return parseAddressOrPort(true, true);
+        default:
+            throw new IllegalArgumentException("unknown primitive '" + word
+                                               + "'");
+        }
+    }
+
+    /**
+     * Parses an address or port primitive after its direction
+     *
+     * @param src whether the source may match
+     * @param dst whether the destination may match
+     */
+    private Test parseAddressOrPort(boolean src, boolean dst) {
+        String word = take("host, net or port");
+
+        switch (word) {
+        case "host":
+            return address(parseAddress(take("address")), -1, src, dst);
+        case "net": {
+            String net = take("network");
+            int slash = net.indexOf('/');
+
+            if (slash < 0)
+                throw new IllegalArgumentException("missing prefix length"
+                                                   + " in '" + net + "'");
+
+            int length = (int) parseNumber(net.substring(slash + 1), 32);
+            int mask = (length == 0) ? 0 : -1 << (32 - length);
+
+            return address(parseAddress(net.substring(0, slash)), mask, src,
+                           dst);
+        }
+        case "port":
+            return port((short) parseNumber(take("port"), 0xffff), src, dst);
+        default:
+            throw new IllegalArgumentException("expected host, net or port"
+                                               + " but got '" + word + "'");
+        }
+    }
+
+    private void expect(String token) {
+        if (!accept(token))
+            throw new IllegalArgumentException("expected '" + token + "'");
+    }
+
+    private static long parseNumber(String word, long max) {
+        long value;
+
+        try {
+            value = word.startsWith("0x")
+                ? Long.parseLong(word.substring(2), 16) : Long.parseLong(word);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid number '" + word + "'");
+        }
+
+        if (value < 0 || value > max)
+            throw new IllegalArgumentException("number out of range '" + word
+                                               + "'");
+
+        return value;
+    }
+
+    private static int parseAddress(String word) {
+        String[] octets = word.split("\\.");
+
+        if (octets.length != 4)
+            throw new IllegalArgumentException("invalid address '" + word
+                                               + "'");
+
+        int address = 0;
+
+        for (String octet : octets)
+            address = (address << 8) | (int) parseNumber(octet, 0xff);
+
+        return address;
+    }
+
+    private static Test and(Test l, Test r) {
+        return (f, o, n) -> l.test(f, o, n) && r.test(f, o, n);
+    }
+
+    /**
+     * Matches frames of an EtherType, looking past a VLAN tag
+     */
+    private static Test etherType(short type) {
+        return (f, o, n) -> n >= ETHER_HEADER_LEN
+            && getEtherType(f, o, n) == type;
+    }
+
+    /**
+     * Matches IPv4 packets of a protocol
+     */
+    private static Test ipProtocol(byte protocol) {
+        return (f, o, n) -> {
+            int ip = ipHeader(f, o, n);
+
+            return ip >= 0 && f[ip + 9] == protocol;
+        };
+    }
+
+    /**
+     * Matches IPv4 packets whose source or destination address is in a
+     * network
+     */
+    private static Test address(int address, int mask, boolean src,
+                                boolean dst) {
+        int network = address & mask;
+
+        return (f, o, n) -> {
+            int ip = ipHeader(f, o, n);
+
+            return ip >= 0
+                && ((src && (getInt(f, ip + 12) & mask) == network)
+                    || (dst && (getInt(f, ip + 16) & mask) == network));
+        };
+    }
+
+    /**
+     * Matches TCP and UDP packets whose source or destination port is the
+     * given one, ignoring fragments after the first
+     */
+    private static Test port(short port, boolean src, boolean dst) {
+        return (f, o, n) -> {
+            int ip = ipHeader(f, o, n);
+
+            if (ip < 0 || (f[ip + 9] != IPv4.PROTOCOL_TCP
+                           && f[ip + 9] != IPv4.PROTOCOL_UDP))
+                return false;
+
+            // Fragment offset
+            if ((getShort(f, ip + 6) & 0x1fff) != 0)
+                return false;
+
+            int l4 = ip + (f[ip] & 0x0f) * 4;
+
+            if (l4 + 4 > o + n)
+                return false;
+
+            return (src && getShort(f, l4) == port)
+                || (dst && getShort(f, l4 + 2) == port);
+        };
+    }
+
+    private static short getEtherType(byte[] f, int o, int n) {
+        short type = getShort(f, o + ETHERTYPE_OFFSET);
+
+        if (type == (short) 0x8100 && n >= ETHER_HEADER_LEN + VLAN_TAG_LEN)
+            type = getShort(f, o + ETHERTYPE_OFFSET + VLAN_TAG_LEN);
+
+        return type;
+    }
+
+    /**
+     * Finds the IPv4 header of a frame
+     *
+     * @return the offset of the header in the array, or -1 if the frame
+     *         does not hold a whole IPv4 header
+     */
+    private static int ipHeader(byte[] f, int o, int n) {
+        if (n < ETHER_HEADER_LEN
+            || getEtherType(f, o, n) != Ethernet.TYPE_IPv4)
+            return -1;
+
+        int ip = o + ETHER_HEADER_LEN;
+
+        if (getShort(f, o + ETHERTYPE_OFFSET) == (short) 0x8100)
+            ip += VLAN_TAG_LEN;
+
+        if (ip + IPV4_HEADER_LEN > o + n
+            || ip + (f[ip] & 0x0f) * 4 > o + n)
+            return -1;
+
+        return ip;
+    }
+
+    private static short getShort(byte[] f, int i) {
+        return (short) (((f[i] & 0xff) << 8) | (f[i + 1] & 0xff));
+    }
+
+    private static int getInt(byte[] f, int i) {
+        return ((f[i] & 0xff) << 24) | ((f[i + 1] & 0xff) << 16)
+            | ((f[i + 2] & 0xff) << 8) | (f[i + 3] & 0xff);
+    }
+}
@@ -2,6 +2,8 @@ package edu.wisc.cs.sdn.vnet;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import net.floodlightcontroller.packet.Ethernet;
 
@@ -25,6 +27,21 @@ public abstract class Device
 	/** Virtual Network Simulator communication manager for the device */
 	private VNSComm vnsComm;
 	
+	/** Worker threads handling received packets; null if packets are 
+	 *  handled by the thread that receives them */
+	private PacketPipeline pipeline;
+	
+	/** Metrics of the device */
+	private Metrics metrics;
+	
+	/** Packets received and sent on each interface; maps interface names to
+	 *  counters */
+	private Map<String,LongAdder> rxPackets;
+	private Map<String,LongAdder> txPackets;
+	
+	/** Time taken to handle each received packet */
+	private Histogram handleTime;
+	
 	/**
 	 * Creates a device.
 	 * @param host hostname for the device
@@ -36,6 +53,13 @@ public abstract class Device
 		this.logfile = logfile;
 		this.interfaces = new HashMap<String,Iface>();
 		this.vnsComm = null;
+		this.pipeline = null;
+		this.metrics = new Metrics();
+		this.rxPackets = new ConcurrentHashMap<String,LongAdder>();
+		this.txPackets = new ConcurrentHashMap<String,LongAdder>();
+		this.handleTime = this.metrics.histogram("device.handle_ns");
+		if (logfile != null)
+		{ this.metrics.gauge("capture.dropped", logfile::getDropped); }
 	}
 	
 	/**
@@ -72,10 +96,44 @@ public abstract class Device
 	{ this.vnsComm = vnsComm; }
 	
 	/**
-	 * Close the PCAP dump file for the router, if logging is enabled.
+	 * @param pipeline worker threads handling received packets; null if 
+	 * 		  packets should be handled by the thread that receives them
+	 */
+	public void setPipeline(PacketPipeline pipeline)
+	{
+		this.pipeline = pipeline;
+		if (pipeline != null)
+		{ this.metrics.gauge("pipeline.dropped", pipeline::getDropped); }
+	}
+	
+	/**
+	 * @return worker threads handling received packets; null if packets are
+	 *         handled by the thread that receives them
+	 */
+	public PacketPipeline getPipeline()
+	{ return this.pipeline; }
+	
+	/**
+	 * @return metrics of the device
+	 */
+	public Metrics getMetrics()
+	{ return this.metrics; }
+	
+	/**
+	 * Stop the workers handling received packets, if any, dump the metrics
+	 * one last time, if they are dumped periodically, and close the PCAP
+	 * dump file for the router, if logging is enabled.
 	 */
 	public void destroy()
 	{
+		if (pipeline != null)
+		{
+			this.pipeline.stop();
+			System.err.println(String.format(
+					"Dropped %d packets with full worker queues", 
+					this.pipeline.getDropped()));
+		}
+		this.metrics.stopDump();
 		if (logfile != null)
 		{ this.logfile.close(); }
 	}
@@ -88,6 +146,10 @@ public abstract class Device
 	{
 		Iface iface = new Iface(ifaceName);
 		this.interfaces.put(ifaceName, iface);
+		this.rxPackets.put(ifaceName, 
+				this.metrics.counter("iface." + ifaceName + ".rx_packets"));
+		this.txPackets.put(ifaceName, 
+				this.metrics.counter("iface." + ifaceName + ".tx_packets"));
 		return iface;
 	}
 	
@@ -108,7 +170,113 @@ public abstract class Device
 	 * @return true if the packet was sent successfully, otherwise false
 	 */
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
-	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
+	{
+		LongAdder sent = this.txPackets.get(iface.getName());
+		if (sent != null)
+		{ sent.increment(); }
+		return this.vnsComm.sendPacket(etherPacket, iface.getName());
+	}
+	
+	/**
+	 * Send a serialized Ethernet frame out a specific interface.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, Iface iface)
+	{
+		LongAdder sent = this.txPackets.get(iface.getName());
+		if (sent != null)
+		{ sent.increment(); }
+		return this.vnsComm.sendFrame(frame, offset, length, iface.getName());
+	}
+	
+	/**
+	 * Handle a received frame from its bytes, before it is parsed, if the
+	 * device can and there are no workers; with workers, every frame is
+	 * parsed and passed to the worker of its flow, so the frames of a flow
+	 * stay in order and are not handled on the thread reading them.
+	 * @param frame buffer holding the frame, which may be changed
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false if it should be parsed 
+	 *         and passed to receivePacket
+	 */
+	public boolean receiveFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{
+		if (null == inIface || null != this.pipeline)
+		{ return false; }
+		
+		long start = System.nanoTime();
+		if (!this.handleFrame(frame, offset, length, inIface))
+		{ return false; }
+		this.handleTime.record(System.nanoTime() - start);
+		
+		LongAdder received = this.rxPackets.get(inIface.getName());
+		if (received != null)
+		{ received.increment(); }
+		return true;
+	}
+	
+	/**
+	 * Handle a received frame from its bytes, if the device can. Devices 
+	 * that handle frames this way must leave the buffer unchanged when they
+	 * return false.
+	 * @param frame buffer holding the frame, which may be changed
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false if it should be parsed
+	 */
+	protected boolean handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{ return false; }
+	
+	/**
+	 * Pass a received Ethernet packet to the worker of its flow, or handle it
+	 * right away if there are no workers.
+	 * @param etherPacket the Ethernet packet that was received
+	 * @param inIface the interface on which the packet was received
+	 * @param traced whether the packet is traced when it is handled
+	 */
+	public void receivePacket(Ethernet etherPacket, Iface inIface, 
+			boolean traced)
+	{
+		LongAdder received = (inIface != null 
+				? this.rxPackets.get(inIface.getName()) : null);
+		if (received != null)
+		{ received.increment(); }
+		
+		if (null == this.pipeline)
+		{ this.processPacket(etherPacket, inIface, traced); }
+		else
+		{ this.pipeline.submit(etherPacket, inIface, traced); }
+	}
+	
+	/**
+	 * Handle a received Ethernet packet, timing how long it takes.
+	 * @param etherPacket the Ethernet packet that was received
+	 * @param inIface the interface on which the packet was received
+	 * @param traced whether to trace the packet
+	 */
+	public void processPacket(Ethernet etherPacket, Iface inIface, 
+			boolean traced)
+	{
+		if (traced)
+		{
+			Tracer.trace(Tracer.Level.DEBUG, "*** -> Received packet on "
+					+ inIface.getName() + ": "
+					+ etherPacket.toString().replace("\n", "\n\t"));
+		}
+		
+		long start = System.nanoTime();
+		this.handlePacket(etherPacket, inIface);
+		this.handleTime.record(System.nanoTime() - start);
+	}
 	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
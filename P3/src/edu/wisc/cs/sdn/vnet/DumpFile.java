@@ -1,70 +1,237 @@
 package edu.wisc.cs.sdn.vnet;
 
-import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
 
 import net.floodlightcontroller.packet.Ethernet;
 
 public class DumpFile
 {
-	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
+	/** Magic number of PCAP files with nanosecond timestamps */
+	private static final int TCPDUMP_MAGIC_NSEC = 0xa1b23c4d;
 	private static final short PCAP_VERSION_MAJOR = 2;
 	private static final short PCAP_VERSION_MINOR = 4;
 	private static final int THIS_ZONE = 0;
 	private static final int SIG_FIGS = 0;
 	private static final int SNAP_LEN = 65535;
 	private static final int LINKTYPE_ETHERNET = 1;
-	
-	private FileOutputStream fileStream;
-	DataOutputStream outStream;
-	
-	private DumpFile(FileOutputStream fileStream)
+
+	/** Size of the header of the file and of each packet record */
+	private static final int FILE_HEADER_LEN = 24;
+	private static final int RECORD_HEADER_LEN = 16;
+
+	/** Smallest ring buffer for asynchronous capture; holds the largest
+	 *  packet record */
+	public static final int MIN_RING_SIZE = RECORD_HEADER_LEN + SNAP_LEN;
+
+	/** Longest time captured packets wait in the ring buffer, in ns */
+	private static final long DRAIN_INTERVAL = 10000000L;
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	/**
+	 * How packets are captured. The defaults capture whole packets into a
+	 * single file, writing each packet when it is captured.
+	 */
+	public static class Options
 	{
-		this.fileStream = fileStream;
-		outStream = new DataOutputStream(fileStream);
+		/** Size of the ring buffer packets are captured into and written
+		 *  from by a background thread, in bytes, at least MIN_RING_SIZE;
+		 *  0 to write each packet when it is captured */
+		public int ringSize = 0;
+
+		/** Largest number of bytes captured from each packet */
+		public int snapLen = SNAP_LEN;
+
+		/** Size in bytes a file may reach before captures move to the next
+		 *  file; 0 for no limit */
+		public long maxFileSize = 0;
+
+		/** Time in ns after which captures move to the next file; checked
+		 *  when a packet is captured; 0 for no limit */
+		public long rotateInterval = 0;
+
+		/** Number of files rotated through before the first one is
+		 *  overwritten; 0 to keep all files */
+		public int fileCount = 0;
+
+		/** Packets captured; null to capture all packets */
+		public CaptureFilter filter = null;
+
+		/**
+		 * @return true if captures are rotated through numbered files
+		 */
+		public boolean rotates()
+		{ return (this.maxFileSize > 0 || this.rotateInterval > 0); }
 	}
-	
-	private DumpFile()
+
+	private String filename;
+	private Options options;
+
+	private FileOutputStream fileStream;
+	private WritableByteChannel channel;
+
+	/** Number of bytes written to the current file */
+	private long fileSize;
+
+	/** Capture time of the first packet in the current file, in ns since the
+	 *  epoch */
+	private long fileStart;
+
+	/** Number of the current file, when rotating */
+	private int fileIndex;
+
+	/** Difference between the epoch and System.nanoTime(), in ns; packets
+	 *  are timestamped from the monotonic clock for nanosecond resolution */
+	private long epochOffset;
+
+	/** Packet record being written; used when capturing synchronously */
+	private ByteBuffer record;
+
+	/** Header of the packet record being written to the ring buffer */
+	private ByteBuffer header;
+
+	/** Packet records waiting to be written to the file; null when capturing
+	 *  synchronously */
+	private ByteBuffer ring;
+
+	/** View of the ring buffer used by the writer thread */
+	private ByteBuffer drain;
+
+	/** Thread writing the ring buffer to the file */
+	private Thread writer;
+
+	/** Number of bytes ever put into and taken out of the ring buffer */
+	private volatile long head;
+	private volatile long tail;
+
+	/** Set once no more packets will be captured */
+	private volatile boolean closing;
+
+	/** Number of packets not captured because the ring buffer was full */
+	private long dropped;
+
+	private DumpFile(String filename, Options options)
 	{
-		this.fileStream = null;
-		outStream = new DataOutputStream(System.out);
+		this.filename = filename;
+		this.options = options;
+		this.epochOffset = System.currentTimeMillis() * NANOS_PER_MILLI
+				- System.nanoTime();
+
+		if (0 == options.ringSize)
+		{ this.record = ByteBuffer.allocate(RECORD_HEADER_LEN + options.snapLen); }
+		else
+		{
+			this.header = ByteBuffer.allocate(RECORD_HEADER_LEN);
+			this.ring = ByteBuffer.allocateDirect(options.ringSize);
+			this.drain = this.ring.duplicate();
+			this.writer = new Thread(this::drainRing, "dump-writer");
+			this.writer.setDaemon(true);
+		}
 	}
-	
+
 	public static DumpFile open(String filename)
+	{ return open(filename, new Options()); }
+
+	/**
+	 * Open a PCAP dump file. When rotating, captures go to the files named
+	 * filename.0, filename.1, and so on.
+	 * @param filename name of the file; - for standard output, which cannot
+	 *        be rotated
+	 * @param options how packets are captured
+	 * @return the dump file; null if it could not be opened
+	 */
+	public static DumpFile open(String filename, Options options)
 	{
-		DumpFile dumpFile = null;
-		if (filename.equals("-"))
-		{ dumpFile = new DumpFile(); }
+		DumpFile dumpFile = new DumpFile(filename, options);
+		if (!dumpFile.openFile(dumpFile.currentTime()))
+		{ return null; }
+		if (dumpFile.writer != null)
+		{ dumpFile.writer.start(); }
+		return dumpFile;
+	}
+
+	/**
+	 * Open the current file and write its header.
+	 * @param timestamp capture time of the first packet in the file
+	 * @return true if the file was opened
+	 */
+	private boolean openFile(long timestamp)
+	{
+		if (this.filename.equals("-"))
+		{
+			this.fileStream = null;
+			this.channel = Channels.newChannel(System.out);
+		}
 		else
 		{
-			try 
-			{ dumpFile = new DumpFile(new FileOutputStream(filename)); } 
-			catch (FileNotFoundException e) 
+			String name = this.filename;
+			if (this.options.rotates())
+			{ name += "." + this.fileIndex; }
+			try
+			{ this.fileStream = new FileOutputStream(name); }
+			catch (FileNotFoundException e)
 			{
-				System.err.println("Cannot open " + filename);
-				return null;
+				System.err.println("Cannot open " + name);
+				return false;
 			}
+			this.channel = this.fileStream.getChannel();
 		}
-		
-		if (!dumpFile.writeHeader())
-		{ return null; }
-		return dumpFile;
+
+		this.fileSize = FILE_HEADER_LEN;
+		this.fileStart = timestamp;
+		return this.writeHeader();
 	}
-	
+
+	/**
+	 * Close the current file and move captures to the next one.
+	 * @param timestamp capture time of the first packet in the next file
+	 */
+	private void rotate(long timestamp) throws IOException
+	{
+		this.closeFile();
+		this.fileIndex++;
+		if (this.options.fileCount > 0)
+		{ this.fileIndex %= this.options.fileCount; }
+		if (!this.openFile(timestamp))
+		{ throw new IOException("Cannot rotate dump file"); }
+	}
+
+	/**
+	 * Check if a packet record should go to the next file.
+	 * @param timestamp capture time of the packet
+	 * @param recordLen length of the packet record
+	 */
+	private boolean needsRotation(long timestamp, int recordLen)
+	{
+		if (this.options.maxFileSize > 0 && this.fileSize > FILE_HEADER_LEN
+				&& this.fileSize + recordLen > this.options.maxFileSize)
+		{ return true; }
+		return (this.options.rotateInterval > 0
+				&& timestamp - this.fileStart >= this.options.rotateInterval);
+	}
+
 	private boolean writeHeader()
-	{        
-		try 
+	{
+		ByteBuffer buf = ByteBuffer.allocate(FILE_HEADER_LEN);
+		buf.putInt(TCPDUMP_MAGIC_NSEC);
+		buf.putShort(PCAP_VERSION_MAJOR);
+		buf.putShort(PCAP_VERSION_MINOR);
+		buf.putInt(THIS_ZONE);
+		buf.putInt(SIG_FIGS);
+		buf.putInt(this.options.snapLen);
+		buf.putInt(LINKTYPE_ETHERNET);
+		buf.flip();
+
+		try
 		{
-			this.outStream.writeInt(TCPDUMP_MAGIC);
-			this.outStream.writeShort(PCAP_VERSION_MAJOR);
-			this.outStream.writeShort(PCAP_VERSION_MINOR);
-			this.outStream.writeInt(THIS_ZONE);
-			this.outStream.writeInt(SIG_FIGS);
-			this.outStream.writeInt(SNAP_LEN);
-			this.outStream.writeInt(LINKTYPE_ETHERNET);
-			this.outStream.flush();
+			this.writeFully(buf);
 			return true;
 		}
 		catch (IOException e)
@@ -74,34 +241,239 @@ public class DumpFile
 		}
 
 	}
-	
+
+	/**
+	 * @return the current time in ns since the epoch
+	 */
+	private long currentTime()
+	{ return this.epochOffset + System.nanoTime(); }
+
 	public void dump(Ethernet etherPacket)
 	{
 		byte[] buf = etherPacket.serialize();
-		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+		this.dump(buf, 0, buf.length);
+	}
+
+	/**
+	 * Capture a packet from the bytes of its Ethernet frame, up to the snap
+	 * length, if it matches the filter. When capturing asynchronously, the
+	 * bytes are copied and the packet is dropped if the ring buffer is full.
+	 * @param frame array holding the frame
+	 * @param offset offset of the frame in the array
+	 * @param length length of the frame
+	 */
+	public void dump(byte[] frame, int offset, int length)
+	{
+		if (this.options.filter != null 
+				&& !this.options.filter.matches(frame, offset, length))
+		{ return; }
+		this.capture(frame, offset, length);
+	}
+
+	private synchronized void capture(byte[] frame, int offset, int length)
+	{
+		long now = this.currentTime();
+		int capLen = Math.min(length, this.options.snapLen);
+
+		if (null == this.ring)
+		{
+			this.record.clear();
+			this.putRecordHeader(this.record, now, capLen, length);
+			this.record.put(frame, offset, capLen);
+			this.record.flip();
+			try
+			{
+				if (this.needsRotation(now, this.record.remaining()))
+				{ this.rotate(now); }
+				this.fileSize += this.record.remaining();
+				this.writeFully(this.record);
+			}
+			catch (IOException e)
+			{ e.printStackTrace(); }
+			return;
+		}
+
+		long used = this.head - this.tail;
+		if (used + RECORD_HEADER_LEN + capLen > this.ring.capacity())
+		{
+			this.dropped++;
+			return;
+		}
+
+		this.header.clear();
+		this.putRecordHeader(this.header, now, capLen, length);
+		long pos = this.putRing(this.head, this.header.array(), 0,
+				RECORD_HEADER_LEN);
+		this.head = this.putRing(pos, frame, offset, capLen);
+
+		// Wake the writer early once the ring buffer is half full
+		if (used < this.ring.capacity() / 2
+				&& this.head - this.tail >= this.ring.capacity() / 2)
+		{ LockSupport.unpark(this.writer); }
+	}
+
+	/**
+	 * @return number of packets not captured because the ring buffer was full
+	 */
+	public synchronized long getDropped()
+	{ return this.dropped; }
+
+	private void putRecordHeader(ByteBuffer buf, long timestamp, int capLen,
+			int length)
+	{
+		buf.putInt((int)(timestamp / NANOS_PER_SECOND));
+		buf.putInt((int)(timestamp % NANOS_PER_SECOND));
+		buf.putInt(capLen);
+		buf.putInt(length);
+	}
+
+	/**
+	 * Copy bytes into the ring buffer, wrapping around its end.
+	 * @param pos number of bytes ever put into the ring buffer
+	 * @return pos advanced past the copied bytes
+	 */
+	private long putRing(long pos, byte[] src, int offset, int length)
+	{
+		int capacity = this.ring.capacity();
+		int index = (int)(pos % capacity);
+		int first = Math.min(length, capacity - index);
+		this.ring.put(index, src, offset, first);
+		if (first < length)
+		{ this.ring.put(0, src, offset + first, length - first); }
+		return pos + length;
+	}
+
+	/**
+	 * Read an int from the ring buffer, wrapping around its end.
+	 * @param pos number of bytes ever put into the ring buffer before the int
+	 */
+	private int getRingInt(long pos)
+	{
+		int capacity = this.ring.capacity();
+		int value = 0;
+		for (int i = 0; i < 4; i++)
+		{ value = (value << 8) | (this.ring.get((int)((pos + i) % capacity)) & 0xff); }
+		return value;
+	}
+
+	/**
+	 * Write the packet records in the ring buffer to the file until the dump
+	 * file is closed, taking all records captured since the last write at
+	 * once. Records are only split across writes where captures move to the
+	 * next file.
+	 */
+	private void drainRing()
+	{
 		try
 		{
-			this.outStream.writeInt(sec);
-			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
-			this.outStream.flush();
+			while (true)
+			{
+				boolean done = this.closing;
+				long head = this.head;
+				long tail = this.tail;
+				if (head == tail)
+				{
+					if (done)
+					{ return; }
+					LockSupport.parkNanos(DRAIN_INTERVAL);
+					continue;
+				}
+
+				if (this.options.rotates())
+				{
+					for (long pos = tail; pos < head; )
+					{
+						long timestamp = (this.getRingInt(pos) & 0xffffffffL)
+								* NANOS_PER_SECOND + this.getRingInt(pos + 4);
+						int recordLen = RECORD_HEADER_LEN
+								+ this.getRingInt(pos + 8);
+						if (this.needsRotation(timestamp, recordLen))
+						{
+							this.writeRing(tail, pos);
+							this.rotate(timestamp);
+							tail = pos;
+						}
+						this.fileSize += recordLen;
+						pos += recordLen;
+					}
+				}
+				else
+				{ this.fileSize += head - tail; }
+
+				this.writeRing(tail, head);
+				this.tail = head;
+			}
 		}
 		catch (IOException e)
-		{ e.printStackTrace(); }
+		{
+			// Packets captured from now on are dropped once the ring fills
+			e.printStackTrace();
+		}
 	}
-	
-	public void close()
+
+	/**
+	 * Write bytes from the ring buffer to the file, wrapping around its end.
+	 * @param from number of bytes ever put into the ring buffer before the
+	 *        first byte to write
+	 * @param to number of bytes ever put into the ring buffer before the
+	 *        byte after the last byte to write
+	 */
+	private void writeRing(long from, long to) throws IOException
+	{
+		if (from == to)
+		{ return; }
+
+		int capacity = this.ring.capacity();
+		int start = (int)(from % capacity);
+		int end = (int)(to % capacity);
+		if (end <= start)
+		{
+			this.writeDrain(start, capacity);
+			start = 0;
+		}
+		this.writeDrain(start, end);
+	}
+
+	private void writeDrain(int start, int end) throws IOException
+	{
+		this.drain.limit(end);
+		this.drain.position(start);
+		this.writeFully(this.drain);
+	}
+
+	private void writeFully(ByteBuffer buf) throws IOException
+	{
+		while (buf.hasRemaining())
+		{ this.channel.write(buf); }
+	}
+
+	private void closeFile()
 	{
 		try
 		{
-			this.outStream.flush();
 			if (this.fileStream != null)
-			{ this.outStream.close(); }
+			{ this.fileStream.close(); }
 		}
 		catch(IOException e) { }
 	}
+
+	public void close()
+	{
+		if (this.writer != null)
+		{
+			this.closing = true;
+			LockSupport.unpark(this.writer);
+			try
+			{ this.writer.join(); }
+			catch (InterruptedException e) { }
+			if (this.getDropped() > 0)
+			{
+				System.err.println(String.format(
+						"Dropped %d packets with a full capture buffer",
+						this.getDropped()));
+			}
+		}
+
+		this.closeFile();
+	}
 }
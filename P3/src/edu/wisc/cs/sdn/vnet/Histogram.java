@@ -0,0 +1,100 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds
+ * Values are counted in buckets by their power of two, so recording a value
+ * is a couple of striped additions, and percentiles are reported as the
+ * upper bound of the bucket they fall in
+ */
+public class Histogram {
+    /** Bucket i counts the values below 2^i and at least 2^(i-1) */
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    /**
+     * Constructs an empty histogram
+     */
+    public Histogram() {
+        buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new LongAccumulator(Math::max, 0L);
+    }
+
+    /**
+     * Records a value
+     *
+     * @param nanos the value in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0L);
+
+        buckets[Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1)]
+            .increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Get the number of recorded values
+     *
+     * @return the number of recorded values
+     */
+    public long getCount() { return count.sum(); }
+
+    /**
+     * Formats the count, mean, median, 99th percentile and maximum of the
+     * recorded values
+     * The counters are read one at a time while values may be recorded, so
+     * the figures can be off by the values recorded meanwhile
+     *
+     * @return the formatted summary
+     */
+    public String summary() {
+        long n = count.sum();
+        long mean = (n == 0) ? 0 : sum.sum() / n;
+
+        return String.format("count=%d mean_ns=%d p50_ns<=%d p99_ns<=%d"
+                             + " max_ns=%d", n, mean, percentile(0.5),
+                             percentile(0.99), max.get());
+    }
+
+    /**
+     * Approximates a percentile by the upper bound of its bucket
+     *
+     * @param quantile the percentile as a fraction
+     *
+     * @return the upper bound of the bucket holding the percentile, or 0 if
+     *         no values were recorded
+     */
+    public long percentile(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts[i] = buckets[i].sum();
+
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+
+            if (seen >= rank && seen > 0)
+                return (i == 0) ? 0 : (1L << i) - 1;
+        }
+
+        return 0;
+    }
+}
@@ -1,5 +1,8 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.io.File;
+
+import edu.wisc.cs.sdn.vnet.rt.RouteCache;
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
@@ -9,6 +12,8 @@ public class Main
 {
 	private static final short DEFAULT_PORT = 8888;
 	private static final String DEFAULT_SERVER = "localhost";
+	private static final int DEFAULT_QUEUE_SIZE = 1024;
+	private static final int DEFAULT_ROUTE_CACHE_SIZE = RouteCache.DEFAULT_SIZE;
 	
 	public static void main(String[] args)
 	{
@@ -18,6 +23,13 @@ public class Main
 		String arpCacheFile = null;
 		String logfile = null;
 		short port = DEFAULT_PORT;
+		int workers = 0;
+		int queueSize = DEFAULT_QUEUE_SIZE;
+		int routeCacheSize = DEFAULT_ROUTE_CACHE_SIZE;
+		DumpFile.Options dumpOptions = new DumpFile.Options();
+		String traceControl = null;
+		long metricsInterval = 0;
+		String metricsFile = "-";
 		VNSComm vnsComm = null;
 		Device dev = null;
 		
@@ -42,9 +54,54 @@ public class Main
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-w"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-q"))
+			{ queueSize = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-c"))
+			{ routeCacheSize = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-b"))
+			{ dumpOptions.ringSize = Integer.parseInt(args[++i]) * 1024; }
+			else if (arg.equals("-S"))
+			{ dumpOptions.snapLen = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-C"))
+			{ dumpOptions.maxFileSize = Long.parseLong(args[++i]) * 1000000L; }
+			else if (arg.equals("-G"))
+			{ dumpOptions.rotateInterval = Long.parseLong(args[++i]) * 1000000000L; }
+			else if (arg.equals("-W"))
+			{ dumpOptions.fileCount = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-t"))
+			{
+				try
+				{ Tracer.configure(args[++i]); }
+				catch (IllegalArgumentException e)
+				{
+					System.err.println("Error: " + e.getMessage());
+					return;
+				}
+			}
+			else if (arg.equals("-T"))
+			{ traceControl = args[++i]; }
+			else if (arg.equals("-m"))
+			{ metricsInterval = Long.parseLong(args[++i]) * 1000L; }
+			else if (arg.equals("-M"))
+			{ metricsFile = args[++i]; }
+			else if (arg.equals("-f"))
+			{
+				try
+				{ dumpOptions.filter = new CaptureFilter(args[++i]); }
+				catch (IllegalArgumentException e)
+				{
+					System.err.println("Error in capture filter: " 
+							+ e.getMessage());
+					return;
+				}
+			}
 		}
 		
-		if (null == host)
+		if (null == host || workers < 0 || queueSize <= 0 || routeCacheSize < 0
+				|| metricsInterval < 0
+				|| !validDumpOptions(dumpOptions, logfile))
 		{
 			usage();
 			return;
@@ -54,7 +111,7 @@ public class Main
 		DumpFile dump = null;
 		if (logfile != null)
 		{
-			dump = DumpFile.open(logfile);
+			dump = DumpFile.open(logfile, dumpOptions);
 			if (null == dump)
 			{
 				System.err.println("Error opening up dump file "+logfile);
@@ -68,6 +125,7 @@ public class Main
 		{
 			// Create router instance
 			dev = new Router(host, dump);
+			((Router)dev).setRouteCacheSize(routeCacheSize);
 		}
 		else 
 		{
@@ -96,20 +154,83 @@ public class Main
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
 		}
 
+		// Change tracing whenever the control file changes
+		if (traceControl != null)
+		{ Tracer.watch(new File(traceControl)); }
+
+		// Hand received packets to worker threads, sharded by flow
+		if (workers > 0)
+		{ dev.setPipeline(new PacketPipeline(dev, workers, queueSize)); }
+
+		// Dump the device's metrics periodically
+		if (metricsInterval > 0 
+				&& !dev.getMetrics().startDump(metricsFile, metricsInterval))
+		{ System.exit(1); }
+
 		// Read messages from the server until the server closes the connection
 		System.out.println("<-- Ready to process packets -->");
 		while (vnsComm.readFromServer());
 		
 		// Shutdown the router
 		dev.destroy();
+		Tracer.close();
+	}
+	
+	static boolean validDumpOptions(DumpFile.Options options, String logfile)
+	{
+		if (options.ringSize != 0 && options.ringSize < DumpFile.MIN_RING_SIZE)
+		{ return false; }
+		if (options.snapLen <= 0 || options.snapLen > 65535)
+		{ return false; }
+		if (options.maxFileSize < 0 || options.rotateInterval < 0 
+				|| options.fileCount < 0)
+		{ return false; }
+		
+		// Only numbered files can be rotated through
+		if (options.fileCount > 0 && !options.rotates())
+		{ return false; }
+		return !(options.rotates() && "-".equals(logfile));
 	}
 	
 	static void usage()
 	{
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
-		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
-		System.out.println(String.format("  defaults server=%s port=%d", 
-				DEFAULT_SERVER, DEFAULT_PORT));
+		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]"
+				+ " [-c route_cache_size]");
+		System.out.println("     [-w workers] [-q queue_size] [-b capture_buffer_kb]");
+		System.out.println("     [-S snap_len] [-C file_size_mb] [-G rotate_seconds]"
+				+ " [-W file_count]");
+		System.out.println("     [-f capture_filter] [-t trace_level[:rate]]"
+				+ " [-T trace_control_file]");
+		System.out.println("     [-m metrics_interval_seconds] [-M metrics_file]");
+		System.out.println(String.format(
+				"  defaults server=%s port=%d workers=0 queue_size=%d", 
+				DEFAULT_SERVER, DEFAULT_PORT, DEFAULT_QUEUE_SIZE));
+		System.out.println(String.format(
+				"  route_cache_size=%d destinations, 0 disables the cache",
+				DEFAULT_ROUTE_CACHE_SIZE));
+		System.out.println("  capture_buffer_kb=0 logs each packet as it is sent"
+				+ " or received,");
+		System.out.println(String.format(
+				"  otherwise at least %d and logged by a background thread",
+				(DumpFile.MIN_RING_SIZE + 1023) / 1024));
+		System.out.println("  with -C or -G, log_file.0, log_file.1, ... are"
+				+ " written in turn,");
+		System.out.println("  reusing the first after file_count files if"
+				+ " file_count is set");
+		System.out.println("  capture_filter is built from arp, ip, ether proto N,"
+				+ " icmp, tcp, udp, rip,");
+		System.out.println("  ip proto N, [src|dst] host A.B.C.D, [src|dst] net"
+				+ " A.B.C.D/LEN,");
+		System.out.println("  [src|dst] port N, and, or, not and parentheses");
+		System.out.println("  trace_level is off, error, warn, info (default),"
+				+ " debug or trace;");
+		System.out.println("  packets are traced at debug, at most rate per second"
+				+ " if set;");
+		System.out.println("  writing trace_level[:rate] to trace_control_file"
+				+ " changes tracing");
+		System.out.println("  metrics are appended to metrics_file, by default the"
+				+ " console, if an interval is set");
 	}
 }
@@ -0,0 +1,189 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A registry of the metrics of a device: counters, gauges read from other
+ * components, and latency histograms, all identified by dotted names
+ * Counters are striped LongAdders, so updating them never blocks, and
+ * callers on the forwarding path should look a metric up once and keep it
+ * The registry can be dumped periodically to a file or the console, each
+ * dump a line with the time followed by one line per metric in name order
+ */
+public class Metrics {
+    private final Map<String, LongAdder> counters;
+    private final Map<String, LongSupplier> gauges;
+    private final Map<String, Histogram> histograms;
+
+    /** Thread dumping the metrics periodically, the stream it writes to,
+     *  and whether it should keep dumping, all guarded by dumpLock */
+    private final Object dumpLock;
+    private Thread dumper;
+    private PrintStream out;
+    private boolean dumping;
+
+    /**
+     * Constructs an empty registry
+     */
+    public Metrics() {
+        counters = new ConcurrentHashMap<String, LongAdder>();
+        gauges = new ConcurrentHashMap<String, LongSupplier>();
+        histograms = new ConcurrentHashMap<String, Histogram>();
+        dumpLock = new Object();
+    }
+
+    /**
+     * Get a counter, creating it if it does not exist
+     *
+     * @param name the name of the counter
+     *
+     * @return the counter
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge of the same name
+     *
+     * @param name  the name of the gauge
+     * @param value reads the current value of the gauge
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Get a histogram, creating it if it does not exist
+     *
+     * @param name the name of the histogram
+     *
+     * @return the histogram
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Writes the current value of every metric
+     *
+     * @param out the stream to write to
+     */
+    public void dump(PrintStream out) {
+        Map<String, String> values = new TreeMap<String, String>();
+
+        counters.forEach((name, counter) ->
+                         values.put(name, Long.toString(counter.sum())));
+        gauges.forEach((name, gauge) ->
+                       values.put(name, Long.toString(gauge.getAsLong())));
+        histograms.forEach((name, histogram) ->
+                           values.put(name, histogram.summary()));
+
+        StringBuilder dump = new StringBuilder();
+
+        dump.append("# metrics ").append(System.currentTimeMillis())
+            .append('\n');
+        values.forEach((name, value) ->
+                       dump.append(name).append(' ').append(value)
+                           .append('\n'));
+
+        out.print(dump);
+        out.flush();
+    }
+
+    /**
+     * Starts dumping the metrics periodically
+     *
+     * @param filename the file to append the dumps to, - for the console
+     * @param interval the time between dumps in milliseconds
+     *
+     * @return true if the file could be opened
+     */
+    public boolean startDump(String filename, long interval) {
+        stopDump();
+
+        PrintStream stream;
+
+        if (filename.equals("-")) {
+            stream = System.out;
+        } else {
+            try {
+                stream = new PrintStream(new FileOutputStream(filename, true));
+            }
+            catch (FileNotFoundException e) {
+                System.err.println("Cannot open " + filename);
+                return false;
+            }
+        }
+
+        synchronized (dumpLock) {
+            out = stream;
+            dumping = true;
+            dumper = new Thread(() -> dumpEvery(stream, interval), "metrics");
+            dumper.setDaemon(true);
+            dumper.start();
+        }
+
+        return true;
+    }
+
+    /**
+     * Stops dumping the metrics, after a last dump
+     */
+    public void stopDump() {
+        Thread thread;
+        PrintStream stream;
+
+        synchronized (dumpLock) {
+            if (dumper == null)
+                return;
+
+            thread = dumper;
+            stream = out;
+            dumper = null;
+            out = null;
+            dumping = false;
+            dumpLock.notifyAll();
+        }
+
+        try { thread.join(); }
+        catch (InterruptedException e) { e.printStackTrace(System.err); }
+
+        dump(stream);
+        if (stream != System.out)
+            stream.close();
+    }
+
+    /**
+     * Dumps the metrics until dumping is stopped, waking early when it is
+     *
+     * @param stream   the stream to write to
+     * @param interval the time between dumps in milliseconds
+     */
+    private void dumpEvery(PrintStream stream, long interval) {
+        for (;;) {
+            synchronized (dumpLock) {
+                long deadline = System.currentTimeMillis() + interval;
+                long left;
+
+                while (dumping
+                       && (left = deadline - System.currentTimeMillis()) > 0) {
+                    try { dumpLock.wait(left); }
+                    catch (InterruptedException e) { return; }
+                }
+
+                if (!dumping)
+                    return;
+            }
+
+            dump(stream);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * A pool of worker threads that handle the packets received by a device
+ * Packets are sharded across the workers by a hash of their flow, the
+ * source and destination IP addresses of IPv4 packets and the source and
+ * destination MAC addresses of all others, so the packets of a flow are
+ * always handled by the same worker, in the order they were received
+ * Every worker has a bounded queue, and packets that arrive while it is
+ * full are dropped and counted
+ */
+public class PacketPipeline {
+    /**
+     * A received packet waiting to be handled
+     */
+    private static class Frame {
+        private final Ethernet etherPacket;
+        private final Iface inIface;
+        private final boolean traced;
+
+        private Frame(Ethernet etherPacket, Iface inIface, boolean traced) {
+            this.etherPacket = etherPacket;
+            this.inIface = inIface;
+            this.traced = traced;
+        }
+    }
+
+    /** Queued after all other packets to stop a worker */
+    private static final Frame STOP = new Frame(null, null, false);
+
+    private final Device device;
+    private final List<BlockingQueue<Frame>> queues;
+    private final Thread[] workers;
+    private final AtomicLongArray dropped;
+
+    /**
+     * Constructs a new pipeline for the given device and starts its workers
+     *
+     * @param device    the device that handles the packets
+     * @param workers   the number of worker threads
+     * @param queueSize the number of packets each worker can hold waiting
+     */
+    public PacketPipeline(Device device, int workers, int queueSize) {
+        this.device = device;
+        this.queues = new ArrayList<BlockingQueue<Frame>>(workers);
+        this.workers = new Thread[workers];
+        this.dropped = new AtomicLongArray(workers);
+
+        for (int i = 0; i < workers; i++) {
+            BlockingQueue<Frame> queue =
+                new ArrayBlockingQueue<Frame>(queueSize);
+
+            queues.add(queue);
+            this.workers[i] = new Thread(() -> work(queue), "worker-" + i);
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * Hands a received packet to the worker of its flow
+     *
+     * @param etherPacket the Ethernet packet that was received
+     * @param inIface     the interface on which the packet was received
+     * @param traced      whether the packet is traced when it is handled
+     *
+     * @return true if the packet was queued, false if it was dropped because
+     *         the worker's queue is full
+     */
+    public boolean submit(Ethernet etherPacket, Iface inIface,
+                          boolean traced) {
+        int worker = Math.floorMod(flowHash(etherPacket), workers.length);
+
+        if (queues.get(worker).offer(new Frame(etherPacket, inIface, traced)))
+            return true;
+
+        dropped.incrementAndGet(worker);
+        return false;
+    }
+
+    /**
+     * Get the number of packets dropped by a worker because its queue was
+     * full
+     *
+     * @param worker the index of the worker
+     *
+     * @return the number of packets dropped by the worker
+     */
+    public long getDropped(int worker) { return dropped.get(worker); }
+
+    /**
+     * Get the number of packets dropped by all workers because their queues
+     * were full
+     *
+     * @return the number of packets dropped
+     */
+    public long getDropped() {
+        long total = 0;
+
+        for (int i = 0; i < dropped.length(); i++)
+            total += dropped.get(i);
+
+        return total;
+    }
+
+    /**
+     * Get the number of worker threads
+     *
+     * @return the number of worker threads
+     */
+    public int getWorkers() { return workers.length; }
+
+    /**
+     * Stops the workers once they have handled all queued packets
+     */
+    public void stop() {
+        try {
+            for (BlockingQueue<Frame> queue : queues)
+                queue.put(STOP);
+
+            for (Thread worker : workers)
+                worker.join();
+        }
+        catch (InterruptedException e) { e.printStackTrace(System.err); }
+    }
+
+    /**
+     * Handles the packets of a queue until the pipeline is stopped
+     * A packet that cannot be handled does not stop the worker
+     *
+     * @param queue the queue of the worker
+     */
+    private void work(BlockingQueue<Frame> queue) {
+        for (;;) {
+            Frame frame;
+
+            try { frame = queue.take(); }
+            catch (InterruptedException e) { return; }
+
+            if (frame == STOP)
+                return;
+
+            try {
+                device.processPacket(frame.etherPacket, frame.inIface,
+                                     frame.traced);
+            }
+            catch (RuntimeException e) { e.printStackTrace(System.err); }
+        }
+    }
+
+    /**
+     * Hashes the flow of a packet, the same for all packets of the flow
+     *
+     * @param etherPacket the packet to hash
+     *
+     * @return the hash of the packet's flow
+     */
+    private static int flowHash(Ethernet etherPacket) {
+        int hash;
+
+        if (etherPacket.getPayload() instanceof IPv4) {
+            IPv4 packet = (IPv4) etherPacket.getPayload();
+
+            hash = 31 * packet.getSourceAddress()
+                + packet.getDestinationAddress();
+        } else {
+            hash = 31 * etherPacket.getSourceMAC().hashCode()
+                + etherPacket.getDestinationMAC().hashCode();
+        }
+
+        // Mix the bits, since addresses in a subnet differ only in their
+        // low bits
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
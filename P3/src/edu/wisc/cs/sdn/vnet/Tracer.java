@@ -0,0 +1,328 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wisc.cs.sdn.vnet.utils.PeriodicTask;
+
+/**
+ * Tracing for the forwarding path of a device
+ * Each trace has a level, and only traces at or above the configured level
+ * are written; traces are also limited to a number per second, and the
+ * ones over the limit are counted instead of written
+ * Checking whether to trace is a volatile read when tracing is off, so
+ * callers should build their messages only after shouldTrace returns true:
+ *
+ *   if (Tracer.shouldTrace(Tracer.Level.DEBUG))
+ *       Tracer.trace(Tracer.Level.DEBUG, "message " + packet);
+ *
+ * Traces are written by an appender, by default asynchronously to the
+ * console, and the level and rate can be changed while running, directly
+ * or through a control file
+ */
+public class Tracer {
+    /**
+     * The levels of traces, from most to least important
+     */
+    public enum Level { OFF, ERROR, WARN, INFO, DEBUG, TRACE }
+
+    /**
+     * Writes traces
+     */
+    public interface Appender {
+        /**
+         * Writes a trace
+         *
+         * @param line the formatted trace
+         */
+        void append(String line);
+
+        /**
+         * Writes all pending traces and releases the appender's resources
+         */
+        void close();
+    }
+
+    /**
+     * Writes traces to a stream on the calling thread
+     */
+    public static class StreamAppender implements Appender {
+        private final PrintStream out;
+
+        /**
+         * @param out the stream to write traces to
+         */
+        public StreamAppender(PrintStream out) { this.out = out; }
+
+        @Override
+        public void append(String line) { out.println(line); }
+
+        @Override
+        public void close() { out.flush(); }
+    }
+
+    /**
+     * Hands traces to a background thread that writes them with another
+     * appender, so the tracing thread never waits for I/O
+     * Traces that arrive while the queue is full are dropped and counted
+     */
+    public static class AsyncAppender implements Appender {
+        /** Queued after all other traces to stop the writer */
+        private static final String STOP = new String();
+
+        private final Appender target;
+        private final BlockingQueue<String> queue;
+        private final Thread writer;
+        private final AtomicLong dropped;
+
+        /**
+         * @param target   the appender writing the traces
+         * @param capacity the number of traces that can wait to be written
+         */
+        public AsyncAppender(Appender target, int capacity) {
+            this.target = target;
+            this.queue = new ArrayBlockingQueue<String>(capacity);
+            this.dropped = new AtomicLong();
+            this.writer = new Thread(this::drain, "trace-writer");
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+
+        @Override
+        public void append(String line) {
+            if (!queue.offer(line))
+                dropped.incrementAndGet();
+        }
+
+        /**
+         * Get the number of traces dropped because the queue was full
+         *
+         * @return the number of dropped traces
+         */
+        public long getDropped() { return dropped.get(); }
+
+        @Override
+        public void close() {
+            try {
+                queue.put(STOP);
+                writer.join();
+            }
+            catch (InterruptedException e) { e.printStackTrace(System.err); }
+
+            if (dropped.get() > 0)
+                target.append("Dropped " + dropped.get()
+                              + " traces with a full queue");
+            target.close();
+        }
+
+        private void drain() {
+            try {
+                for (String line; (line = queue.take()) != STOP; )
+                    target.append(line);
+            }
+            catch (InterruptedException e) { e.printStackTrace(System.err); }
+        }
+    }
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /** How often the control file is checked, in milliseconds */
+    private static final long CONTROL_INTERVAL = 1000L;
+
+    private static volatile Level level = Level.INFO;
+    private static volatile int maxPerSecond = 0;
+    private static volatile Appender appender =
+        new AsyncAppender(new StreamAppender(System.out), 8192);
+
+    /** Start of the current second of rate limiting, and the number of
+     *  traces in it */
+    private static volatile long windowStart = System.nanoTime();
+    private static final AtomicInteger windowCount = new AtomicInteger();
+
+    /** Number of traces over the rate limit */
+    private static final AtomicLong suppressed = new AtomicLong();
+
+    private static PeriodicTask controlTask;
+
+    private Tracer() {}
+
+    /**
+     * Checks whether a trace at a level should be written, counting it
+     * against the rate limit if so
+     *
+     * @param traceLevel the level of the trace
+     *
+     * @return true if the trace should be written
+     */
+    public static boolean shouldTrace(Level traceLevel) {
+        if (traceLevel.compareTo(level) > 0 || level == Level.OFF)
+            return false;
+
+        int max = maxPerSecond;
+
+        if (max == 0)
+            return true;
+
+        long now = System.nanoTime();
+
+        if (now - windowStart >= NANOS_PER_SECOND) {
+            windowStart = now;
+            windowCount.set(0);
+        }
+
+        if (windowCount.incrementAndGet() <= max)
+            return true;
+
+        suppressed.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Writes a trace, whether or not it should be; see shouldTrace
+     *
+     * @param traceLevel the level of the trace
+     * @param message    the message of the trace
+     */
+    public static void trace(Level traceLevel, String message) {
+        appender.append(String.format("%d %s [%s] %s",
+                                      System.currentTimeMillis(), traceLevel,
+                                      Thread.currentThread().getName(),
+                                      message));
+    }
+
+    /**
+     * Get the level of the traces that are written
+     *
+     * @return the least important level written
+     */
+    public static Level getLevel() { return level; }
+
+    /**
+     * Sets the level of the traces that are written
+     *
+     * @param newLevel the least important level to write
+     */
+    public static void setLevel(Level newLevel) { level = newLevel; }
+
+    /**
+     * Sets the largest number of traces written per second
+     *
+     * @param max the number of traces per second, 0 for no limit
+     */
+    public static void setMaxPerSecond(int max) { maxPerSecond = max; }
+
+    /**
+     * Get the number of traces not written because they were over the rate
+     * limit
+     *
+     * @return the number of suppressed traces
+     */
+    public static long getSuppressed() { return suppressed.get(); }
+
+    /**
+     * Replaces the appender traces are written with, closing the old one
+     *
+     * @param newAppender the appender to write traces with
+     */
+    public static void setAppender(Appender newAppender) {
+        Appender old = appender;
+
+        appender = newAppender;
+        old.close();
+    }
+
+    /**
+     * Configures tracing from a specification of the form level[:rate],
+     * where rate is the largest number of traces written per second
+     *
+     * @param spec the specification, such as "debug" or "debug:100"
+     *
+     * @throws IllegalArgumentException if the specification is not valid
+     */
+    public static void configure(String spec) {
+        String[] parts = spec.trim().split(":");
+
+        if (parts.length > 2)
+            throw new IllegalArgumentException("invalid trace setting '"
+                                               + spec + "'");
+
+        Level newLevel;
+        int newMax = 0;
+
+        try {
+            newLevel = Level.valueOf(parts[0].trim().toUpperCase());
+
+            if (parts.length == 2)
+                newMax = Integer.parseInt(parts[1].trim());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("invalid trace setting '"
+                                               + spec + "'");
+        }
+
+        if (newMax < 0)
+            throw new IllegalArgumentException("invalid trace rate '"
+                                               + spec + "'");
+
+        maxPerSecond = newMax;
+        level = newLevel;
+    }
+
+    /**
+     * Reconfigures tracing whenever a control file changes, with the
+     * specification in the file; see configure
+     * The file does not need to exist until tracing should change
+     *
+     * @param file the control file
+     */
+    public static synchronized void watch(File file) {
+        if (controlTask != null)
+            controlTask.stop();
+
+        long[] lastModified = { 0L };
+
+        controlTask = new PeriodicTask(() -> {
+            long modified = file.lastModified();
+
+            if (modified == 0L || modified == lastModified[0])
+                return;
+
+            lastModified[0] = modified;
+
+            try {
+                configure(new String(Files.readAllBytes(file.toPath()),
+                                     StandardCharsets.UTF_8));
+                System.err.println("Tracing set to " + level
+                                   + (maxPerSecond > 0
+                                      ? " at " + maxPerSecond + "/s" : ""));
+            }
+            catch (IOException | IllegalArgumentException e) {
+                System.err.println("Error reading " + file + ": "
+                                   + e.getMessage());
+            }
+        }, CONTROL_INTERVAL);
+        controlTask.start();
+    }
+
+    /**
+     * Stops watching the control file and writes all pending traces
+     */
+    public static synchronized void close() {
+        if (controlTask != null) {
+            controlTask.stop();
+            controlTask = null;
+        }
+
+        if (suppressed.get() > 0)
+            appender.append("Suppressed " + suppressed.get()
+                            + " traces over the rate limit");
+        appender.close();
+    }
+}
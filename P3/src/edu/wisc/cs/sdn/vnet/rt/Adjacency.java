@@ -0,0 +1,83 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.MACAddress;
+
+import static net.floodlightcontroller.packet.MACAddress.MAC_ADDRESS_LENGTH;
+
+/**
+ * A resolved next hop: the interface to send a forwarded packet on and the
+ * MAC addresses to rewrite its Ethernet header with
+ * Adjacencies are immutable and shared through an AdjacencyTable, one per
+ * interface and next hop; when the ARP entry they were resolved from
+ * changes, a new one is resolved instead
+ */
+public class Adjacency {
+    private final Iface iface;
+    private final int nextHop;
+    private final MACAddress destinationMac;
+    private final MACAddress sourceMac;
+
+    /** Destination then source MAC, as they appear in an Ethernet header */
+    private final byte[] header;
+
+    /**
+     * @param iface          the interface to send packets on
+     * @param nextHop        the address of the next hop
+     * @param destinationMac the MAC address of the next hop
+     */
+    public Adjacency(Iface iface, int nextHop, MACAddress destinationMac) {
+        this.iface = iface;
+        this.nextHop = nextHop;
+        this.destinationMac = destinationMac;
+        this.sourceMac = iface.getMacAddress();
+
+        this.header = new byte[2 * MAC_ADDRESS_LENGTH];
+        System.arraycopy(destinationMac.toBytes(), 0, header, 0,
+                         MAC_ADDRESS_LENGTH);
+        System.arraycopy(sourceMac.toBytes(), 0, header, MAC_ADDRESS_LENGTH,
+                         MAC_ADDRESS_LENGTH);
+    }
+
+    /**
+     * @return the interface to send packets on
+     */
+    public Iface getInterface() { return iface; }
+
+    /**
+     * @return the address of the next hop
+     */
+    public int getNextHop() { return nextHop; }
+
+    /**
+     * @return the MAC address of the next hop
+     */
+    public MACAddress getDestinationMac() { return destinationMac; }
+
+    /**
+     * @return the MAC address of the interface
+     */
+    public MACAddress getSourceMac() { return sourceMac; }
+
+    /**
+     * Rewrites the MAC addresses of a frame for the next hop
+     *
+     * @param etherPacket the frame
+     */
+    public void rewrite(Ethernet etherPacket) {
+        etherPacket.setDestinationMAC(destinationMac);
+        etherPacket.setSourceMAC(sourceMac);
+    }
+
+    /**
+     * Rewrites the MAC addresses of a serialized frame for the next hop
+     *
+     * @param frame  the buffer holding the frame
+     * @param offset the offset of the frame in the buffer
+     */
+    public void rewrite(byte[] frame, int offset) {
+        System.arraycopy(header, 0, frame, offset, header.length);
+    }
+}
@@ -0,0 +1,175 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * The adjacencies of a router, one per interface and next hop, resolved
+ * from the ARP cache the first time they are needed and shared by every
+ * lookup after that, so resolving a next hop does not allocate
+ * The table remembers the generation of the ARP cache it was built in;
+ * once the ARP cache changes, the adjacencies are resolved again into an
+ * empty table, so they follow the MAC addresses of their next hops
+ * Tables are immutable open-addressed arrays replaced whole when an
+ * adjacency is added, so threads look adjacencies up without locking
+ */
+class AdjacencyTable {
+    /** Number of slots of an empty table */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * An immutable version of the table
+     */
+    private static class Table {
+        private final long arpGeneration;
+        private final Adjacency[] slots;
+        private final int size;
+
+        private Table(long arpGeneration, Adjacency[] slots, int size) {
+            this.arpGeneration = arpGeneration;
+            this.slots = slots;
+            this.size = size;
+        }
+
+        /**
+         * Finds the adjacency of an interface and next hop
+         *
+         * @return the adjacency, or null if it is not in the table
+         */
+        private Adjacency find(Iface iface, int nextHop) {
+            int mask = slots.length - 1;
+
+            for (int i = index(nextHop, mask); slots[i] != null;
+                 i = (i + 1) & mask) {
+                Adjacency adjacency = slots[i];
+                if (adjacency.getNextHop() == nextHop
+                    && adjacency.getInterface() == iface)
+                    return adjacency;
+            }
+
+            return null;
+        }
+
+        /**
+         * Copies the table with one more adjacency, growing it to keep it
+         * at most half full
+         *
+         * @return the copy
+         */
+        private Table with(Adjacency adjacency) {
+            int capacity = slots.length;
+            if (2 * (size + 1) > capacity)
+                capacity *= 2;
+
+            Adjacency[] copy = new Adjacency[capacity];
+            for (Adjacency slot : slots) {
+                if (slot != null)
+                    insert(copy, slot);
+            }
+            insert(copy, adjacency);
+
+            return new Table(arpGeneration, copy, size + 1);
+        }
+
+        /**
+         * Stores an adjacency in the first free slot from its own
+         */
+        private static void insert(Adjacency[] slots, Adjacency adjacency) {
+            int mask = slots.length - 1;
+            int i = index(adjacency.getNextHop(), mask);
+
+            while (slots[i] != null)
+                i = (i + 1) & mask;
+            slots[i] = adjacency;
+        }
+
+        /**
+         * @return the slot a next hop's adjacency is looked up from
+         */
+        private static int index(int nextHop, int mask) {
+            int hash = nextHop * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+
+    private final ArpCache arpCache;
+    private volatile Table table;
+
+    /**
+     * Constructs an empty table
+     *
+     * @param arpCache the ARP cache to resolve next hops with
+     */
+    AdjacencyTable(ArpCache arpCache) {
+        this.arpCache = arpCache;
+        this.table = empty(arpCache.getGeneration());
+    }
+
+    /**
+     * @return an empty table for a generation of the ARP cache
+     */
+    private static Table empty(long arpGeneration) {
+        return new Table(arpGeneration, new Adjacency[INITIAL_CAPACITY], 0);
+    }
+
+    /**
+     * Resolves the adjacency of a next hop
+     *
+     * @param iface   the interface to reach the next hop through
+     * @param nextHop the address of the next hop
+     *
+     * @return the adjacency, or null if the next hop is not in the ARP
+     *         cache
+     */
+    Adjacency resolve(Iface iface, int nextHop) {
+        // Read the generation first: if the ARP cache changes before the
+        // lookup below, the adjacency is stored with the older generation
+        // and resolved again
+        long arpGeneration = arpCache.getGeneration();
+        Table table = this.table;
+
+        if (table.arpGeneration == arpGeneration) {
+            Adjacency adjacency = table.find(iface, nextHop);
+            if (adjacency != null)
+                return adjacency;
+        }
+
+        ArpEntry arpEntry = arpCache.lookup(nextHop);
+        if (arpEntry == null)
+            return null;
+
+        return add(new Adjacency(iface, nextHop, arpEntry.getMac()),
+                   arpGeneration);
+    }
+
+    /**
+     * Adds an adjacency to the table, unless another thread added one for
+     * the same next hop first
+     *
+     * @param adjacency     the adjacency
+     * @param arpGeneration the generation of the ARP cache it was resolved
+     *                      in
+     *
+     * @return the adjacency in the table
+     */
+    private synchronized Adjacency add(Adjacency adjacency,
+                                       long arpGeneration) {
+        Table table = this.table;
+
+        // A table from a later generation is kept, the adjacency is
+        // already out of date
+        if (table.arpGeneration > arpGeneration)
+            return adjacency;
+
+        if (table.arpGeneration < arpGeneration) {
+            table = empty(arpGeneration);
+        } else {
+            Adjacency existing = table.find(adjacency.getInterface(),
+                                            adjacency.getNextHop());
+            if (existing != null)
+                return existing;
+        }
+
+        this.table = table.with(adjacency);
+        return adjacency;
+    }
+}
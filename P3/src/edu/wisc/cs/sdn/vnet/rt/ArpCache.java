@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,12 +21,18 @@ public class ArpCache
 {
 	/** Entries in the cache; maps an IP address to an entry */
 	private Map<Integer,ArpEntry> entries;
+
+	/** Incremented after every change to the entries */
+	private AtomicLong generation;
 	
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	{
+		this.entries = new ConcurrentHashMap<Integer,ArpEntry>();
+		this.generation = new AtomicLong();
+	}
 	
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
@@ -34,7 +41,17 @@ public class ArpCache
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{
+		this.entries.put(ip, new ArpEntry(mac, ip));
+		this.generation.incrementAndGet();
+	}
+
+	/**
+	 * @return the generation of the cache, which changes after an entry is
+	 *         inserted
+	 */
+	public long getGeneration()
+	{ return this.generation.get(); }
 	
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -0,0 +1,266 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * A path-compressed binary trie (a Patricia trie) of IPv4 prefixes, for
+ * longest prefix matching
+ * Every node holds a prefix and, unless it only joins two subtries, a
+ * value; a node's children hold longer prefixes that extend it by a 0 or a
+ * 1 bit, so a lookup follows one path of at most 33 nodes regardless of
+ * the number of prefixes
+ * Nodes are immutable: a change copies the nodes on the path to the prefix
+ * it changes and shares the rest, so a copy of the trie costs nothing and
+ * changing it costs at most 33 nodes, while the original stays unchanged
+ * and can still be read from other threads
+ * A trie is not thread-safe to change
+ *
+ * @param <V> the type of values stored with the prefixes
+ */
+class PrefixTrie<V> {
+    /**
+     * A node of the trie
+     */
+    private static class Node<V> {
+        private final int prefix;
+        private final int length;
+        private final V value;
+        private final Node<V> zero;
+        private final Node<V> one;
+
+        private Node(int prefix, int length, V value, Node<V> zero,
+                     Node<V> one) {
+            this.prefix = prefix;
+            this.length = length;
+            this.value = value;
+            this.zero = zero;
+            this.one = one;
+        }
+
+        private Node<V> child(int bit) { return bit == 0 ? zero : one; }
+
+        /**
+         * @return a copy of the node with a different value
+         */
+        private Node<V> withValue(V value) {
+            return new Node<V>(prefix, length, value, zero, one);
+        }
+
+        /**
+         * @return a copy of the node with a different child
+         */
+        private Node<V> withChild(int bit, Node<V> child) {
+            return bit == 0 ? new Node<V>(prefix, length, value, child, one)
+                            : new Node<V>(prefix, length, value, zero, child);
+        }
+    }
+
+    private Node<V> root;
+    private int size;
+
+    /**
+     * Get the prefix length of a subnet mask
+     *
+     * @param mask the subnet mask, whose ones must be contiguous
+     *
+     * @return the number of ones in the mask
+     */
+    static int prefixLength(int mask) { return Integer.bitCount(mask); }
+
+    /**
+     * Get the subnet mask of a prefix length
+     *
+     * @param length the prefix length, from 0 to 32
+     *
+     * @return the subnet mask
+     */
+    static int mask(int length) { return length == 0 ? 0 : -1 << (32 - length); }
+
+    /**
+     * Get a bit of an address
+     *
+     * @param address the address
+     * @param index   the index of the bit, 0 for the most significant
+     *
+     * @return the bit, 0 or 1
+     */
+    private static int bit(int address, int index) {
+        return (address >>> (31 - index)) & 1;
+    }
+
+    /**
+     * Copies the trie; the copy shares every node with the trie, and
+     * changes to either copy only the nodes they change
+     *
+     * @return the copy
+     */
+    public PrefixTrie<V> copy() {
+        PrefixTrie<V> copy = new PrefixTrie<V>();
+
+        copy.root = root;
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Get the number of prefixes in the trie
+     *
+     * @return the number of prefixes
+     */
+    public int size() { return size; }
+
+    /**
+     * Removes all prefixes
+     */
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    /**
+     * Finds the value of the longest prefix matching an address
+     *
+     * @param address the address to match
+     *
+     * @return the value of the longest matching prefix, or null if no
+     *         prefix matches
+     */
+    public V lookup(int address) {
+        V best = null;
+
+        for (Node<V> node = root; node != null; ) {
+            if ((address & mask(node.length)) != node.prefix)
+                break;
+
+            if (node.value != null)
+                best = node.value;
+
+            if (node.length == 32)
+                break;
+
+            node = node.child(bit(address, node.length));
+        }
+
+        return best;
+    }
+
+    /**
+     * Gets the value of a prefix
+     *
+     * @param prefix the prefix, bits beyond its length are ignored
+     * @param length the length of the prefix
+     *
+     * @return the value of the prefix, or null if it is not in the trie
+     */
+    public V get(int prefix, int length) {
+        prefix &= mask(length);
+
+        for (Node<V> node = root; node != null; ) {
+            if (node.length > length
+                || (prefix & mask(node.length)) != node.prefix)
+                return null;
+
+            if (node.length == length)
+                return node.value;
+
+            node = node.child(bit(prefix, node.length));
+        }
+
+        return null;
+    }
+
+    /**
+     * Sets the value of a prefix
+     *
+     * @param prefix the prefix, bits beyond its length are ignored
+     * @param length the length of the prefix
+     * @param value  the value, not null
+     *
+     * @return the previous value of the prefix, or null if it was not in
+     *         the trie
+     */
+    public V put(int prefix, int length, V value) {
+        V previous = get(prefix, length);
+
+        root = insert(root, prefix & mask(length), length, value);
+        if (previous == null)
+            size++;
+
+        return previous;
+    }
+
+    /**
+     * Removes a prefix
+     *
+     * @param prefix the prefix, bits beyond its length are ignored
+     * @param length the length of the prefix
+     *
+     * @return the value of the prefix, or null if it was not in the trie
+     */
+    public V remove(int prefix, int length) {
+        V previous = get(prefix, length);
+
+        if (previous != null) {
+            root = delete(root, prefix & mask(length), length);
+            size--;
+        }
+
+        return previous;
+    }
+
+    /**
+     * Inserts a prefix into a subtrie, copying the nodes on its path
+     *
+     * @return the root of the new subtrie
+     */
+    private Node<V> insert(Node<V> node, int prefix, int length, V value) {
+        if (node == null)
+            return new Node<V>(prefix, length, value, null, null);
+
+        int common = Math.min(Integer.numberOfLeadingZeros(prefix ^ node.prefix),
+                              Math.min(node.length, length));
+
+        // The node holds the prefix
+        if (common == node.length && common == length)
+            return node.withValue(value);
+
+        // The prefix extends the node's prefix
+        if (common == node.length) {
+            int bit = bit(prefix, node.length);
+            Node<V> child = insert(node.child(bit), prefix, length, value);
+
+            return node.withChild(bit, child);
+        }
+
+        // The node's prefix extends the prefix
+        Node<V> leaf = (common == length)
+                       ? null : new Node<V>(prefix, length, value, null, null);
+        boolean nodeFirst = bit(node.prefix, common) == 0;
+
+        return new Node<V>(prefix & mask(common), common,
+                           common == length ? value : null,
+                           nodeFirst ? node : leaf, nodeFirst ? leaf : node);
+    }
+
+    /**
+     * Removes a prefix from a subtrie, copying the nodes on its path and
+     * merging nodes that no longer join two subtries
+     *
+     * @return the root of the new subtrie
+     */
+    private Node<V> delete(Node<V> node, int prefix, int length) {
+        if (node == null)
+            return null;
+
+        if (node.length == length) {
+            node = node.withValue(null);
+        } else {
+            int bit = bit(prefix, node.length);
+
+            node = node.withChild(bit, delete(node.child(bit), prefix, length));
+        }
+
+        if (node.value != null || (node.zero != null && node.one != null))
+            return node;
+
+        return node.zero != null ? node.zero : node.one;
+    }
+}
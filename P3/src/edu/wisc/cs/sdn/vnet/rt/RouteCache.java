@@ -0,0 +1,179 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A direct-mapped cache of route lookups by destination address, in front
+ * of a route table and an ARP cache
+ * Each slot remembers one destination, the route found for it, or that
+ * there was none, and the adjacency its next hop resolved to, so forwarding
+ * a packet to a cached destination takes a single lookup
+ * Adjacencies come from an adjacency table shared by every destination
+ * through the same next hop, so neither a miss nor a disabled cache
+ * resolves and allocates a new one
+ * Slots also remember the generations of the route table and ARP cache
+ * they were resolved in; a slot from an older generation is a miss, so any
+ * change to either invalidates the whole cache at once
+ * Slots are immutable and replaced whole, so threads share the cache
+ * without locking and a lost race only costs a miss
+ */
+public class RouteCache {
+    /** Number of slots when none is configured */
+    public static final int DEFAULT_SIZE = 1024;
+
+    /**
+     * A cached lookup
+     */
+    private static class Slot {
+        private final int address;
+        private final long generation;
+        private final long arpGeneration;
+        private final RouteEntry entry;
+        private final Adjacency adjacency;
+
+        private Slot(int address, long generation, long arpGeneration,
+                     RouteEntry entry, Adjacency adjacency) {
+            this.address = address;
+            this.generation = generation;
+            this.arpGeneration = arpGeneration;
+            this.entry = entry;
+            this.adjacency = adjacency;
+        }
+    }
+
+    private final RouteTable table;
+    private final ArpCache arpCache;
+    private final AdjacencyTable adjacencies;
+    private final Slot[] slots;
+    private final int mask;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    /**
+     * Constructs an empty cache
+     *
+     * @param table    the route table to look routes up in
+     * @param arpCache the ARP cache to resolve next hops with
+     * @param size     the number of slots, rounded up to a power of two, or
+     *                 0 to look every route up in the table
+     * @param hits     counts the lookups answered by the cache
+     * @param misses   counts the lookups passed to the table
+     */
+    public RouteCache(RouteTable table, ArpCache arpCache, int size,
+                      LongAdder hits, LongAdder misses) {
+        if (size < 0)
+            throw new IllegalArgumentException("negative route cache size");
+
+        int capacity = (size <= 1)
+                       ? size : Integer.highestOneBit(size - 1) << 1;
+
+        this.table = table;
+        this.arpCache = arpCache;
+        this.adjacencies = new AdjacencyTable(arpCache);
+        this.slots = new Slot[capacity];
+        this.mask = capacity - 1;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    /**
+     * Get the number of slots
+     *
+     * @return the number of slots, 0 if the cache is disabled
+     */
+    public int size() { return slots.length; }
+
+    /**
+     * Looks up the route entry that matches an address
+     *
+     * @param address the destination address
+     *
+     * @return the matching route entry, null if none exists
+     */
+    public RouteEntry lookup(int address) {
+        if (slots.length == 0)
+            return table.lookup(address);
+
+        return slot(address).entry;
+    }
+
+    /**
+     * Resolves the adjacency to forward packets to an address through
+     *
+     * @param address the destination address
+     *
+     * @return the adjacency of the matching route's next hop, null if no
+     *         route matches or the next hop is not in the ARP cache
+     */
+    public Adjacency resolve(int address) {
+        if (slots.length == 0)
+            return adjacency(table.lookup(address), address);
+
+        return slot(address).adjacency;
+    }
+
+    /**
+     * Finds the slot of an address, resolving it again unless it is cached
+     * for the current generations
+     *
+     * @param address the destination address
+     *
+     * @return the slot of the address
+     */
+    private Slot slot(int address) {
+        // Read the generations first: if either changes before the lookups
+        // below, the slot is stored with the older one and misses
+        long generation = table.getGeneration();
+        long arpGeneration = arpCache.getGeneration();
+
+        int hash = address * 0x9E3779B9;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        Slot slot = slots[index];
+
+        if (slot != null && slot.address == address
+            && slot.generation == generation
+            && slot.arpGeneration == arpGeneration) {
+            hits.increment();
+            return slot;
+        }
+
+        misses.increment();
+
+        slot = resolve(address, generation, arpGeneration);
+        slots[index] = slot;
+        return slot;
+    }
+
+    /**
+     * Looks up the route and next hop of an address
+     *
+     * @return a slot holding the route and adjacency of the address
+     */
+    private Slot resolve(int address, long generation, long arpGeneration) {
+        RouteEntry entry = table.lookup(address);
+
+        return new Slot(address, generation, arpGeneration, entry,
+                        adjacency(entry, address));
+    }
+
+    /**
+     * Resolves the adjacency of a route's next hop
+     *
+     * @param entry   the route, or null if there is none
+     * @param address the destination address
+     *
+     * @return the adjacency, or null if there is no route or the next hop
+     *         is not in the ARP cache
+     */
+    private Adjacency adjacency(RouteEntry entry, int address) {
+        if (entry == null)
+            return null;
+
+        // If the gateway is zero, the next hop is the destination
+        int next = entry.getGatewayAddress();
+        if (next == 0)
+            next = address;
+
+        return adjacencies.resolve(entry.getInterface(), next);
+    }
+}
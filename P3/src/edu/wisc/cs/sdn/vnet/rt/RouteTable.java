@@ -4,8 +4,14 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -15,9 +21,6 @@ import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Iface;
 import edu.wisc.cs.sdn.vnet.utils.PeriodicTask;
 
-import static java.lang.Integer.MIN_VALUE;
-import static java.lang.Integer.bitCount;
-
 /**
  * Route table for a router.
  * @author Aaron Gember-Jacobson
@@ -27,8 +30,281 @@ public class RouteTable
 	/** Time after which stale entries are removed */
 	public static long timeDelta = 30000L;
 
-	/** Entries in the route table */
-	private List<RouteEntry> entries;
+	/**
+	 * An immutable version of the route table: its entries, their index
+	 * by prefix, in which each prefix maps to the first of its entries,
+	 * and its generation, which every change to the table increments.
+	 * Versions are published whole, so the forwarding path reads them
+	 * without locking while writers build the next one.
+	 */
+	private static class Fib
+	{
+		private final List<RouteEntry> entries;
+		private final PrefixTrie<RouteEntry> index;
+		private final long generation;
+
+		private Fib(List<RouteEntry> entries, PrefixTrie<RouteEntry> index,
+				long generation)
+		{
+			this.generation = generation;
+			this.entries = Collections.unmodifiableList(entries);
+			this.index = index;
+		}
+	}
+
+	/**
+	 * A set of changes to the route table, published as a single version.
+	 * A batch starts from a copy of the current version's index, which
+	 * shares all of its nodes, and each change only copies the nodes on the
+	 * path to its prefix. Changed entries are recorded aside, and the entry
+	 * list of the new version is built in one pass when the batch is
+	 * published. A change thus costs one path of the index, and a batch
+	 * one pass over the entries however many changes it makes.
+	 * Lookups in a batch see the changes made before them.
+	 * A batch is only valid inside the call to {@link RouteTable#apply}.
+	 */
+	public static class Batch
+	{
+		/** Entries of the version the batch started from */
+		private final List<RouteEntry> base;
+
+		/** Entries inserted by the batch */
+		private final List<RouteEntry> added;
+
+		/** Entries updated by the batch, mapped to their replacements */
+		private final Map<RouteEntry,RouteEntry> replaced;
+
+		/** Entries removed by the batch */
+		private final Set<RouteEntry> removed;
+
+		/** Index of the entries, changed along with them */
+		private final PrefixTrie<RouteEntry> index;
+
+		private boolean changed;
+
+		private Batch(Fib fib)
+		{
+			this.base = fib.entries;
+			this.added = new ArrayList<RouteEntry>();
+			this.replaced = new IdentityHashMap<RouteEntry,RouteEntry>();
+			this.removed = Collections.newSetFromMap(
+					new IdentityHashMap<RouteEntry,Boolean>());
+			this.index = fib.index.copy();
+			this.changed = false;
+		}
+
+		/**
+		 * Lookup the route entry that matches a given IP address.
+		 * @param ip IP address
+		 * @return the matching route entry, null if none exists
+		 */
+		public RouteEntry lookup(int ip)
+		{ return this.index.lookup(ip); }
+
+		/**
+		 * Add an entry to the route table.
+		 * @param dstIp destination IP
+		 * @param gwIp gateway IP
+		 * @param maskIp subnet mask
+		 * @param iface router interface out which to send packets to reach
+		 *		the destination or gateway
+		 * @param cost cost of this link
+		 * @param permanent whether or not this entry should be preserves at
+		 *		cleanup
+		 */
+		public void insert(int dstIp, int gwIp, int maskIp, Iface iface,
+				int cost, boolean permanent)
+		{ add(newEntry(dstIp, gwIp, maskIp, iface, cost, permanent)); }
+
+		/**
+		 * Update an entry in the route table.
+		 * @param dstIP destination IP of the entry to update
+		 * @param maskIp subnet mask of the entry to update
+		 * @param gatewayAddress new gateway IP address for matching entry
+		 * @param iface new router interface for matching entry
+		 * @param cost the cost to this entry
+		 * @return true if a matching entry was found and updated, otherwise
+		 *		false
+		 */
+		public boolean update(int dstIp, int maskIp, int gwIp, Iface iface,
+				int cost)
+		{
+			RouteEntry entry = this.find(dstIp, maskIp);
+			if (null == entry) { return false; }
+
+			RouteEntry updated = newEntry(dstIp, gwIp, maskIp, iface, cost,
+					entry.isPermanent());
+			this.replaced.put(entry, updated);
+
+			int length = PrefixTrie.prefixLength(maskIp);
+			if (entry == this.index.get(dstIp & maskIp, length))
+			{ this.index.put(dstIp & maskIp, length, updated); }
+
+			this.changed = true;
+			return true;
+		}
+
+		/**
+		 * Remove an entry from the route table.
+		 * @param dstIP destination IP of the entry to remove
+		 * @param maskIp subnet mask of the entry to remove
+		 * @return true if a matching entry was found and removed, otherwise
+		 *		false
+		 */
+		public boolean remove(int dstIp, int maskIp)
+		{
+			RouteEntry entry = this.find(dstIp, maskIp);
+			if (null == entry) { return false; }
+
+			return this.removeIf(candidate -> candidate == entry);
+		}
+
+		/**
+		 * Remove the entries of the route table that match a filter.
+		 * @param filter selects the entries to remove
+		 * @return true if any entry was removed, otherwise false
+		 */
+		public boolean removeIf(Predicate<RouteEntry> filter)
+		{
+			List<RouteEntry> entries = this.entries();
+			Set<Long> orphaned = new HashSet<Long>();
+			boolean removedAny = false;
+
+			for (RouteEntry entry : entries)
+			{
+				if (!filter.test(entry)) { continue; }
+
+				this.removed.add(entry);
+				removedAny = true;
+
+				int maskIp = entry.getMaskAddress();
+				int length = PrefixTrie.prefixLength(maskIp);
+				int prefix = entry.getDestinationAddress() & maskIp;
+				if (entry == this.index.get(prefix, length))
+				{
+					this.index.remove(prefix, length);
+					orphaned.add(key(prefix, length));
+				}
+			}
+
+			if (!removedAny) { return false; }
+
+			// Index the first remaining entry of every prefix whose indexed
+			// entry was removed
+			for (RouteEntry entry : entries)
+			{
+				int maskIp = entry.getMaskAddress();
+				int length = PrefixTrie.prefixLength(maskIp);
+				int prefix = entry.getDestinationAddress() & maskIp;
+
+				if (!orphaned.contains(key(prefix, length))
+					|| this.removed.contains(entry)
+					|| null != this.index.get(prefix, length))
+				{ continue; }
+
+				this.index.put(prefix, length, entry);
+			}
+
+			this.changed = true;
+			return true;
+		}
+
+		/**
+		 * Add an entry to the route table.
+		 * @param entry the entry
+		 */
+		private void add(RouteEntry entry)
+		{
+			int maskIp = entry.getMaskAddress();
+			int length = PrefixTrie.prefixLength(maskIp);
+			int prefix = entry.getDestinationAddress() & maskIp;
+
+			if (null == this.index.get(prefix, length))
+			{ this.index.put(prefix, length, entry); }
+
+			this.added.add(entry);
+			this.changed = true;
+		}
+
+		/**
+		 * Find an entry in the route table.
+		 * @param dstIP destination IP of the entry to find
+		 * @param maskIp subnet mask of the entry to find
+		 * @return a matching entry if one was found, otherwise null
+		 */
+		private RouteEntry find(int dstIp, int maskIp)
+		{
+			RouteEntry indexed = this.index.get(dstIp & maskIp,
+					PrefixTrie.prefixLength(maskIp));
+			if (null == indexed) { return null; }
+			if (indexed.getDestinationAddress() == dstIp
+				&& indexed.getMaskAddress() == maskIp)
+			{ return indexed; }
+
+			// Entries whose destinations differ outside their masks share a
+			// prefix, so only the first of them is indexed
+			for (RouteEntry entry : this.entries())
+			{
+				if ((entry.getDestinationAddress() == dstIp)
+					&& (entry.getMaskAddress() == maskIp)) 
+				{ return entry; }
+			}
+			return null;
+		}
+
+		/**
+		 * Build the entry list of the route table with the changes made so
+		 * far, in the order the entries were added.
+		 * @return the entries
+		 */
+		private List<RouteEntry> entries()
+		{
+			List<RouteEntry> entries = new ArrayList<RouteEntry>(
+					this.base.size() + this.added.size());
+
+			// Inserts alone only append to the entries
+			if (this.replaced.isEmpty() && this.removed.isEmpty())
+			{
+				entries.addAll(this.base);
+				entries.addAll(this.added);
+				return entries;
+			}
+
+			for (RouteEntry entry : this.base)
+			{ this.addCurrent(entries, entry); }
+			for (RouteEntry entry : this.added)
+			{ this.addCurrent(entries, entry); }
+			return entries;
+		}
+
+		/**
+		 * Add the latest version of an entry to a list, unless it was
+		 * removed.
+		 * @param entries the list
+		 * @param entry the entry as it was first added
+		 */
+		private void addCurrent(List<RouteEntry> entries, RouteEntry entry)
+		{
+			RouteEntry replacement;
+			while (null != (replacement = this.replaced.get(entry)))
+			{ entry = replacement; }
+
+			if (!this.removed.contains(entry))
+			{ entries.add(entry); }
+		}
+
+		/**
+		 * @return a key identifying a prefix and its length
+		 */
+		private static long key(int prefix, int length)
+		{ return ((long) length << 32) | (prefix & 0xffffffffL); }
+	}
+
+	/** Current version of the route table */
+	private volatile Fib fib;
+
+	/** Serializes the writers building new versions of the route table */
+	private final Object writeLock;
 
 	/** Use RIP configuration */
 	private boolean rip;
@@ -41,12 +317,43 @@ public class RouteTable
 	 */
 	public RouteTable()
 	{
-		this.entries = new LinkedList<RouteEntry>();
+		this.fib = new Fib(new ArrayList<RouteEntry>(),
+				new PrefixTrie<RouteEntry>(), 0);
+		this.writeLock = new Object();
 		rip = false;
 		cleaner = new PeriodicTask(this::clearStaleEntries, 1000L, true);
 	}
 
-	public List<RouteEntry> getEntries() { return entries; }
+	/**
+	 * @return the entries of the current version of the route table, which
+	 *         later changes to the table do not affect
+	 */
+	public List<RouteEntry> getEntries() { return this.fib.entries; }
+
+	/**
+	 * @return the generation of the current version of the route table,
+	 *         which changes whenever an entry is added, updated or removed
+	 */
+	public long getGeneration() { return this.fib.generation; }
+
+	/**
+	 * Apply a set of changes to the route table as a single new version.
+	 * @param changes makes the changes to a batch of the current version
+	 */
+	public void apply(Consumer<Batch> changes)
+	{
+		synchronized(this.writeLock)
+		{
+			Batch batch = new Batch(this.fib);
+			changes.accept(batch);
+
+			if (batch.changed)
+			{
+				this.fib = new Fib(batch.entries(), batch.index,
+						this.fib.generation + 1);
+			}
+		}
+	}
 
 	/**
 	 * Enable RIP configuration
@@ -71,73 +378,29 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
-		{
-			/*****************************************************************/
-			/* Find the route entry with the longest prefix match	  */
-			
-            // Track the most specific entry so far
-            var bestEntry = new Object(){
-            	public RouteEntry entry = null;
-
-	            // Length of the longest prefix so far
-            	public int prefixLength = MIN_VALUE;
-            };
-
-            try {
-            // We attempt to perform a parallel search
-            entries.parallelStream()
-                   .unordered()
-                   .forEach(entry -> {
-               	// Subnet Number of the current entry
-                int subnetMask = entry.getMaskAddress();
-
-                // Subnet mask of the current entry
-                int subnetNumber = entry.getDestinationAddress() & subnetMask;
-
-                // Length of the current prefix
-                int prefixLength;
-
-                if ((ip & subnetMask) == subnetNumber) {
-                    // Longest prefix possible is 32, if found, stop searching
-                    if ((prefixLength = bitCount(subnetMask)) == 32) {
-                        bestEntry.entry = entry;
-                        throw new RuntimeException();
-                    }
-
-                    // Update longestPrefix and bestEntry if
-                    // the current entry is more specific
-                    if (prefixLength > bestEntry.prefixLength) {
-                        bestEntry.prefixLength = prefixLength;
-                        bestEntry.entry = entry;
-                    }
-                }
-            });
-            } catch (RuntimeException unused) {}
-
-            return bestEntry.entry;
-			/*****************************************************************/
-		}
+		/*********************************************************************/
+		/* Find the route entry with the longest prefix match	  */
+
+		return this.fib.index.lookup(ip);
+		/*********************************************************************/
 	}
 
 	private void clearStaleEntries() {
-		synchronized(entries) {
-			final long curr = System.currentTimeMillis();
-			Predicate<Long> timeout = lastUpdate -> curr - lastUpdate > timeDelta;
+		final long curr = System.currentTimeMillis();
+		Predicate<Long> timeout = lastUpdate -> curr - lastUpdate > timeDelta;
 
-			entries.removeIf(entry -> {
-				if (entry == null)
-					return true;
+		this.apply(batch -> batch.removeIf(entry -> {
+			if (entry == null)
+				return true;
 
-				if (entry.isPermanent())
-					return false;
+			if (entry.isPermanent())
+				return false;
 
-				if (timeout.test(entry.getLastUpdate()))
-					return true;
+			if (timeout.test(entry.getLastUpdate()))
+				return true;
 
-				return false;
-			});
-		}
+			return false;
+		}));
 	}
 	
 	/**
@@ -161,6 +424,7 @@ public class RouteTable
 			return false;
 		}
 		
+		List<RouteEntry> loaded = new ArrayList<RouteEntry>();
 		while (true)
 		{
 			// Read a route entry from the file
@@ -223,11 +487,15 @@ public class RouteTable
 			}
 			
 			// Add an entry to the route table
-			this.insert(dstIp, gwIp, maskIp, iface);
+			loaded.add(newEntry(dstIp, gwIp, maskIp, iface,
+					RouteEntry.infinity, true));
 		}
 	
 		// Close the file
 		try { reader.close(); } catch (IOException f) {};
+
+		// Publish the whole file as one version
+		this.apply(batch -> loaded.forEach(batch::add));
 		return true;
 	}
 	
@@ -257,23 +525,10 @@ public class RouteTable
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface, int cost,
 						boolean permanent)
 	{
-		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-
-		if (permanent)
-			entry.makePermanent();
+		RouteEntry entry = newEntry(dstIp, gwIp, maskIp, iface, cost,
+				permanent);
 
-		if (cost < 0) {
-			throw new IllegalArgumentException(
-				"Cannot have negative costs on links!"
-			);
-		}
-
-		entry.setCost(cost);
-
-		synchronized(this.entries)
-		{
-			this.entries.add(entry);
-		}
+		this.apply(batch -> batch.add(entry));
 	}
 	
 	/**
@@ -284,13 +539,9 @@ public class RouteTable
 	 */
 	public boolean remove(int dstIp, int maskIp)
 	{ 
-		synchronized(this.entries)
-		{
-			RouteEntry entry = this.find(dstIp, maskIp);
-			if (null == entry) { return false; }
-			this.entries.remove(entry);
-		}
-		return true;
+		boolean[] removed = new boolean[1];
+		this.apply(batch -> removed[0] = batch.remove(dstIp, maskIp));
+		return removed[0];
 	}
 	
 	/**
@@ -308,6 +559,8 @@ public class RouteTable
 
 	/**
 	 * Update an entry in the route table.
+	 * The entry is replaced rather than changed, so lookups in progress
+	 * never see it half updated.
 	 * @param dstIP destination IP of the entry to update
 	 * @param maskIp subnet mask of the entry to update
 	 * @param gatewayAddress new gateway IP address for matching entry
@@ -317,57 +570,62 @@ public class RouteTable
 	 */
 	public boolean update(int dstIp, int maskIp, int gwIp, Iface iface, int cost)
 	{
-		synchronized(this.entries)
-		{
-			RouteEntry entry = this.find(dstIp, maskIp);
-			if (null == entry) { return false; }
-			entry.setGatewayAddress(gwIp);
-			entry.setInterface(iface);
-			entry.setCost(cost);
-		}
-		return true;
+		boolean[] updated = new boolean[1];
+		this.apply(batch ->
+				updated[0] = batch.update(dstIp, maskIp, gwIp, iface, cost));
+		return updated[0];
 	}
 
 	/**
 	 * Clears all entries in the route table.
 	 */
 	public void clear() {
-		synchronized(this.entries) {
-			this.entries.clear();
+		synchronized(this.writeLock) {
+			this.fib = new Fib(new ArrayList<RouteEntry>(),
+					new PrefixTrie<RouteEntry>(),
+					this.fib.generation + 1);
 		}
 	}
 
 	/**
-	 * Find an entry in the route table.
-	 * @param dstIP destination IP of the entry to find
-	 * @param maskIp subnet mask of the entry to find
-	 * @return a matching entry if one was found, otherwise null
+	 * Create an entry for the route table.
+	 * @param dstIp destination IP
+	 * @param gwIp gateway IP
+	 * @param maskIp subnet mask
+	 * @param iface router interface out which to send packets to reach the
+	 *		destination or gateway
+	 * @param cost cost of this link
+	 * @param permanent whether or not this entry should be preserves at cleanup
+	 * @return the entry
 	 */
-	private RouteEntry find(int dstIp, int maskIp)
+	private static RouteEntry newEntry(int dstIp, int gwIp, int maskIp,
+			Iface iface, int cost, boolean permanent)
 	{
-		synchronized(this.entries)
-		{
-			for (RouteEntry entry : this.entries)
-			{
-				if ((entry.getDestinationAddress() == dstIp)
-					&& (entry.getMaskAddress() == maskIp)) 
-				{ return entry; }
-			}
+		if (cost < 0) {
+			throw new IllegalArgumentException(
+				"Cannot have negative costs on links!"
+			);
 		}
-		return null;
+
+		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
+
+		if (permanent)
+			entry.makePermanent();
+
+		entry.setCost(cost);
+		return entry;
 	}
-	
+
 	public String toString()
 	{
-		synchronized(this.entries)
-		{ 
-			if (0 == this.entries.size())
-			{ return " WARNING: route table empty"; }
-			
-			String result = "Destination\tGateway\t\tMask\t\tIface\n";
-			for (RouteEntry entry : entries)
-			{ result += entry.toString()+"\n"; }
-			return result;
-		}
+		List<RouteEntry> entries = this.fib.entries;
+
+		if (0 == entries.size())
+		{ return " WARNING: route table empty"; }
+
+		String result = "Destination\tGateway\t\tMask\t\tIface\n";
+		for (RouteEntry entry : entries)
+		{ result += entry.toString()+"\n"; }
+		return result;
 	}
 }
@@ -22,6 +22,7 @@ import static net.floodlightcontroller.packet.RIPv2.COMMAND_RESPONSE;
 import static net.floodlightcontroller.packet.UDP.RIP_PORT;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 /**
@@ -31,6 +32,9 @@ public class Router extends Device
 {	
 	/** Routing table for the router */
 	private RouteTable routeTable;
+
+    /** Cache of the routing table's lookups by destination */
+    private RouteCache routeCache;
 	
 	/** ARP cache for the router */
 	private ArpCache arpCache;
@@ -41,6 +45,36 @@ public class Router extends Device
     /** Using RIP to dynamically configure Route Tables */
     private PeriodicTask ripSender;
 
+    /** Reasons packets are dropped, each counted as router.drop.<reason> */
+    private enum Drop {
+        NOT_IPV4, BAD_CHECKSUM, TTL_EXPIRED, FOR_ROUTER, NO_ROUTE, LOOP,
+        NO_ARP_ENTRY
+    }
+
+    /** Packets dropped, indexed by reason */
+    private final LongAdder[] drops;
+
+    /** Packets forwarded, those forwarded straight from their bytes, and
+     *  RIP packets handled */
+    private final LongAdder forwarded;
+    private final LongAdder fastForwarded;
+    private final LongAdder ripReceived;
+
+    /** Offsets in an Ethernet frame, and in an IPv4 header without options */
+    private static final int ETHER_TYPE = 12;
+    private static final int ETHER_HEADER_LEN = 14;
+    private static final int IP_VERSION_IHL = 0;
+    private static final int IP_TOTAL_LENGTH = 2;
+    private static final int IP_TTL = 8;
+    private static final int IP_PROTOCOL = 9;
+    private static final int IP_CHECKSUM = 10;
+    private static final int IP_DESTINATION = 16;
+    private static final int IP_HEADER_LEN = 20;
+
+    /** Addresses of the router's interfaces, for the frame path; built on
+     *  the first frame, once the interfaces are known */
+    private int[] ifaceAddresses;
+
     /** RIP Destination IP is 224.0.0.9 */
     private final static int RIP_DEST_IP;
 
@@ -69,8 +103,30 @@ public class Router extends Device
 		this.arpCache = new ArpCache();
         rip = false;
         ripSender = new PeriodicTask(() -> broadcastRIP(COMMAND_RESPONSE), 10000L, true);
+
+        drops = new LongAdder[Drop.values().length];
+        for (Drop reason : Drop.values())
+            drops[reason.ordinal()] = getMetrics().counter(
+                    "router.drop." + reason.name().toLowerCase());
+        forwarded = getMetrics().counter("router.forwarded");
+        fastForwarded = getMetrics().counter("router.fast_path.forwarded");
+        ripReceived = getMetrics().counter("router.rip_received");
+
+        setRouteCacheSize(RouteCache.DEFAULT_SIZE);
 	}
 
+    /**
+     * Replaces the cache of route lookups with an empty one
+     *
+     * @param size the number of destinations cached, rounded up to a power
+     *             of two, or 0 to look every packet's route up in the table
+     */
+    public void setRouteCacheSize(int size) {
+        routeCache = new RouteCache(routeTable, arpCache, size,
+                getMetrics().counter("router.route_cache.hits"),
+                getMetrics().counter("router.route_cache.misses"));
+    }
+
     /**
      * Allows this router to generate routing tables dynamically using the
      * RIP protocol
@@ -148,20 +204,22 @@ public class Router extends Device
      */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-        System.out.println("*** -> Received packet: " +
-                etherPacket.toString().replace("\n", "\n\t"));
 		/********************************************************************/
 
         // Check if packet if of type IPv4
-        if (TYPE_IPv4 != etherPacket.getEtherType())
+        if (TYPE_IPv4 != etherPacket.getEtherType()) {
+            drop(Drop.NOT_IPV4);
             return;
+        }
 
         // Get frame's payload
         IPv4 packet = (IPv4) etherPacket.getPayload();
 
         // Verify packet's checksum, if invalid, drop it
-        if (!isChecksumValid(packet))
+        if (!isChecksumValid(packet)) {
+            drop(Drop.BAD_CHECKSUM);
             return;
+        }
 
         // Handle unsolicited RIP packet
         if (rip && packet.getProtocol() == PROTOCOL_UDP) {
@@ -169,54 +227,198 @@ public class Router extends Device
             //     handleRIP((RIPv2) packet.getPayload().getPayload());
             // })).start();
 
+            ripReceived.increment();
             handleRIP(etherPacket, inIface);
             return;
         }
 
         // Check pre-decrement TTL, if not greater than 1, drop it
-        if (packet.getTtl() <= 1)
+        if ((packet.getTtl() & 0xff) <= 1) {
+            drop(Drop.TTL_EXPIRED);
             return;
+        }
 
         // Decrement TTL
         packet.setTtl((byte) (packet.getTtl() - 1));
 
         // If packet was meant for router, drop it
-        if (isPacketForRouter(packet))
-            return;
-
-        RouteEntry entry;
-        // If no matching entry, drop the packet
-        if (null == (entry = routeTable.lookup(packet.getDestinationAddress())))
+        if (isPacketForRouter(packet)) {
+            drop(Drop.FOR_ROUTER);
             return;
+        }
 
-        Iface outIface;
-        // If destination is on the incoming interface, there might be a loop.
-        // Drop the packet
-        if ((outIface = entry.getInterface()) == inIface)
-            return;
-
-        // Get next hop's ip address. If it's zero, next hop is the destination
-        int next;
-        if ((next = entry.getGatewayAddress()) == 0)
-            next = packet.getDestinationAddress();
-
-        ArpEntry destEntry;
-        if(null == (destEntry = arpCache.lookup(next)))
+        Adjacency adjacency;
+        // If the next hop cannot be resolved, drop the packet
+        if (null == (adjacency = resolve(packet.getDestinationAddress(),
+                                         inIface)))
             return;
 
-        // Set source MAC to the router's out interface's MAC
-        etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
-        // Set destination MAC to the destination's MAC
-        etherPacket.setDestinationMACAddress(destEntry.getMac().toBytes());
+        // Set source MAC to the router's out interface's MAC, and destination
+        // MAC to the next hop's MAC
+        adjacency.rewrite(etherPacket);
 
         packet.resetChecksum();
         // etherPacket.setPayload(packet);
         // Send the packet on the out interface
-        sendPacket(etherPacket, outIface);
+        sendPacket(etherPacket, adjacency.getInterface());
+        forwarded.increment();
 		
 		/********************************************************************/
 	}
 
+    /**
+     * Forwards an IPv4 frame straight from its bytes, without parsing it
+     * into packets: checks the header, decrements the TTL and patches the
+     * checksum incrementally (RFC 1624), rewrites the MAC addresses and
+     * sends the same bytes
+     * Frames with IP options and RIP traffic are left to handlePacket, which
+     * makes the same checks in the same order, so either path drops a
+     * packet for the same reason; traced frames never reach this
+     */
+    @Override
+    protected boolean handleFrame(byte[] frame, int offset, int length,
+                                  Iface inIface) {
+        int ip = offset + ETHER_HEADER_LEN;
+
+        if (length < ETHER_HEADER_LEN + IP_HEADER_LEN
+            || getShort(frame, offset + ETHER_TYPE) != TYPE_IPv4
+            || frame[ip + IP_VERSION_IHL] != 0x45)
+            return false;
+
+        int totalLength = getShort(frame, ip + IP_TOTAL_LENGTH);
+        if (totalLength < IP_HEADER_LEN
+            || totalLength > length - ETHER_HEADER_LEN)
+            return false;
+
+        // A valid header sums to 0xffff, checksum included
+        int sum = 0;
+        for (int i = 0; i < IP_HEADER_LEN; i += 2)
+            sum += getShort(frame, ip + i);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        if (sum != 0xffff) {
+            drop(Drop.BAD_CHECKSUM);
+            return true;
+        }
+
+        int protocol = frame[ip + IP_PROTOCOL] & 0xff;
+        if (rip && protocol == PROTOCOL_UDP)
+            return false;
+
+        int ttl = frame[ip + IP_TTL] & 0xff;
+        if (ttl <= 1) {
+            drop(Drop.TTL_EXPIRED);
+            return true;
+        }
+
+        int dest = (getShort(frame, ip + IP_DESTINATION) << 16)
+                   | getShort(frame, ip + IP_DESTINATION + 2);
+        if (isRouterAddress(dest)) {
+            drop(Drop.FOR_ROUTER);
+            return true;
+        }
+
+        Adjacency adjacency;
+        if (null == (adjacency = resolve(dest, inIface)))
+            return true;
+
+        // Decrement TTL, and update the checksum for the changed word:
+        // HC' = ~(~HC + ~m + m')
+        int oldWord = (ttl << 8) | protocol;
+        int newWord = oldWord - 0x100;
+        int checksum = (~getShort(frame, ip + IP_CHECKSUM) & 0xffff)
+                       + (~oldWord & 0xffff) + newWord;
+        checksum = (checksum & 0xffff) + (checksum >>> 16);
+        checksum = (checksum & 0xffff) + (checksum >>> 16);
+        checksum = ~checksum & 0xffff;
+
+        frame[ip + IP_TTL] = (byte) (ttl - 1);
+        frame[ip + IP_CHECKSUM] = (byte) (checksum >>> 8);
+        frame[ip + IP_CHECKSUM + 1] = (byte) checksum;
+
+        // Rewrite the MAC addresses, and send the frame without any padding
+        // after the IP packet, as handlePacket would
+        adjacency.rewrite(frame, offset);
+        sendFrame(frame, offset, ETHER_HEADER_LEN + totalLength,
+                  adjacency.getInterface());
+        forwarded.increment();
+        fastForwarded.increment();
+        return true;
+    }
+
+    /**
+     * Get a 16-bit big-endian value from a buffer
+     */
+    private static int getShort(byte[] buf, int offset) {
+        return ((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff);
+    }
+
+    /**
+     * Check if an address is one of the router's interfaces' addresses,
+     * without allocating; only called by the thread receiving frames
+     *
+     * @param  address the address to check
+     * @return true if the address is one of the router's
+     */
+    private boolean isRouterAddress(int address) {
+        if (ifaceAddresses == null)
+            ifaceAddresses = interfaces.values().stream()
+                             .mapToInt(Iface::getIpAddress)
+                             .toArray();
+
+        for (int ifaceAddress : ifaceAddresses)
+            if (ifaceAddress == address)
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Resolves the next hop to forward a packet to, counting the packet as
+     * dropped if there is none
+     *
+     * @param dest    the destination address of the packet
+     * @param inIface the interface on which the packet was received
+     *
+     * @return the adjacency to forward the packet through, or null if it was
+     *         dropped
+     */
+    private Adjacency resolve(int dest, Iface inIface) {
+        Adjacency adjacency;
+        // If the next hop cannot be resolved, find out why
+        if (null == (adjacency = routeCache.resolve(dest))) {
+            RouteEntry entry;
+            // If no matching entry, drop the packet
+            if (null == (entry = routeCache.lookup(dest)))
+                drop(Drop.NO_ROUTE);
+            // If destination is on the incoming interface, there might be a
+            // loop
+            else if (entry.getInterface() == inIface)
+                drop(Drop.LOOP);
+            else
+                drop(Drop.NO_ARP_ENTRY);
+            return null;
+        }
+
+        // If destination is on the incoming interface, there might be a loop.
+        // Drop the packet
+        if (adjacency.getInterface() == inIface) {
+            drop(Drop.LOOP);
+            return null;
+        }
+
+        return adjacency;
+    }
+
+    /**
+     * Count a dropped packet
+     *
+     * @param reason why the packet was dropped
+     */
+    private void drop(Drop reason) {
+        drops[reason.ordinal()].increment();
+    }
+
     /**
      * @author Mrigank Kumar
      *
@@ -430,19 +632,17 @@ public class Router extends Device
         IPv4 ipPacket = (IPv4) etherPacket.getPayload();
         RIPv2 ripPacket = (RIPv2) ipPacket.getPayload().getPayload();
 
-        ripPacket
-        .getEntries()
-        .parallelStream()
-        .unordered()
-        .forEach(ripEntry -> {
-            RouteEntry routeEntry = routeTable.lookup(ripEntry.getAddress());
+        // Apply the whole response as one version of the route table, so
+        // its entries cost one copy of the table rather than one each
+        routeTable.apply(batch -> ripPacket.getEntries().forEach(ripEntry -> {
+            RouteEntry routeEntry = batch.lookup(ripEntry.getAddress());
 
             if (routeEntry != null) {
                 // If we have a Route Entry for this RIP Entry, then use distance
                 // vector's relax step to determine whether we should update
 
                 if (ripEntry.getMetric() + 1 <= routeEntry.getCost()) {
-                    routeTable.update(
+                    batch.update(
     /* dstIp  */        ripEntry.getAddress() & ripEntry.getSubnetMask(),
     /* maskIp */        ripEntry.getSubnetMask(),
     /* gwIp   */        ipPacket.getSourceAddress(),
@@ -454,7 +654,7 @@ public class Router extends Device
                 // If we don't have an Route Entry for this RIP Entry
                 // just add it as a temporary entry
 
-                routeTable.insert(
+                batch.insert(
  /* dstIp     */    ripEntry.getAddress() & ripEntry.getSubnetMask(),
  /* gwIp      */    ipPacket.getSourceAddress(),
  /* maskIp    */    ripEntry.getSubnetMask(),
@@ -463,6 +663,6 @@ public class Router extends Device
  /* permanent */    false
                 );
             }
-        });
+        }));
     }
 }
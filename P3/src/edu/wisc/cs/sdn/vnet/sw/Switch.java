@@ -8,6 +8,7 @@ import edu.wisc.cs.sdn.vnet.Iface;
 import edu.wisc.cs.sdn.vnet.utils.TimeoutMap;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @author Aaron Gember-Jacobson
@@ -15,6 +16,10 @@ import java.util.concurrent.ConcurrentHashMap;
 public class Switch extends Device
 {	
     private TimeoutMap<MACAddress, Iface> cache;
+
+    /** Packets sent to the interface of their destination, and flooded */
+    private final LongAdder forwarded;
+    private final LongAdder flooded;
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -23,6 +28,8 @@ public class Switch extends Device
 	{
 		super(host,logfile);
         cache = new TimeoutMap<MACAddress, Iface>(15000L, 1000L);
+        forwarded = getMetrics().counter("switch.forwarded");
+        flooded = getMetrics().counter("switch.flooded");
 	}
 
 	/**
@@ -32,9 +39,6 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
-		
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
 
@@ -48,10 +52,12 @@ public class Switch extends Device
         // If dest Iface exists in cache, send it there
         if (outIface != null) {
             sendPacket(etherPacket, outIface);
+            forwarded.increment();
             return;
         }
 
         // Flood the packet otherwise
+        flooded.increment();
         interfaces
         .values()
         .parallelStream()
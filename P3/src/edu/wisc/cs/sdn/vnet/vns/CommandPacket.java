@@ -21,8 +21,8 @@ public class CommandPacket extends Command
 		this.mInterfaceName = new String(tmpBytes).trim();
 		
 		this.etherPacket = new Ethernet();
-		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
+		this.etherPacket.deserialize(buf.array(),
+				buf.arrayOffset() + buf.position(), buf.remaining());
 		
 		return this;
 	}
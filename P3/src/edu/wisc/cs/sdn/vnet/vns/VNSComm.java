@@ -1,28 +1,106 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Metrics;
+import edu.wisc.cs.sdn.vnet.Tracer;
 
 public class VNSComm 
 {
-	private Socket socket;
+	/** Largest command the server may send */
+	private static final int MAX_COMMAND_LEN = 10000;
+	
+	/** Size of the buffer commands are read into; holds several commands */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	/** Largest number of packets sent with a single write */
+	private static final int MAX_GATHER = 64;
+	
+	/** Size of a packet command's interface name, and of its header */
+	private static final int IFACE_NAME_LEN = 16;
+	private static final int PACKET_HEADER_LEN = 8 + IFACE_NAME_LEN;
+	
+	private SocketChannel channel;
 	private Device device;
 	
+	/** Bytes read from the server but not yet handled, kept ready to read */
+	private ByteBuffer readBuffer;
+	
+	/** The command being handled, copied out of the read buffer */
+	private byte[] command;
+	private ByteBuffer commandBuffer;
+	
+	/** Serialized packets waiting to be written to the server */
+	private Queue<ByteBuffer> outQueue;
+	
+	/** Held by the thread writing queued packets to the server */
+	private ReentrantLock writeLock;
+	private ByteBuffer[] gather;
+	
+	/** Thread handling a batch of commands, whose packets are sent together
+	 * once the batch is done */
+	private volatile Thread batchThread;
+	
+	/** Packets sent by the batch thread, serialized back to back */
+	private ByteBuffer batchBuffer;
+	
+	/** The device's interfaces and their names as they appear in packet
+	 * commands, to find and name interfaces without building strings */
+	private Iface[] ifaces;
+	private byte[][] ifaceNames;
+	private Map<String,byte[]> ifaceNamesByName;
+	
+	/** Packets and bytes received from and sent to the server, and the reads
+	 * and writes they took */
+	private LongAdder rxPackets;
+	private LongAdder rxBytes;
+	private LongAdder reads;
+	private LongAdder txPackets;
+	private LongAdder txBytes;
+	private LongAdder writes;
+	
 	public VNSComm(Device device)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		
+		this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		this.readBuffer.flip();
+		this.command = new byte[MAX_COMMAND_LEN];
+		this.commandBuffer = ByteBuffer.wrap(this.command);
+		this.outQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.writeLock = new ReentrantLock();
+		this.gather = new ByteBuffer[MAX_GATHER];
+		this.batchBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		this.ifaces = new Iface[0];
+		this.ifaceNames = new byte[0][];
+		this.ifaceNamesByName = new HashMap<String,byte[]>();
+		
+		Metrics metrics = device.getMetrics();
+		this.rxPackets = metrics.counter("vns.rx_packets");
+		this.rxBytes = metrics.counter("vns.rx_bytes");
+		this.reads = metrics.counter("vns.reads");
+		this.txPackets = metrics.counter("vns.tx_packets");
+		this.txBytes = metrics.counter("vns.tx_bytes");
+		this.writes = metrics.counter("vns.writes");
 	}
 	
 	public boolean connectToServer(short port, String server)
@@ -37,9 +115,13 @@ public class VNSComm
 			return false;
 		}
 		
-		// Create socket and attempt to connect to the server
+		// Create channel and attempt to connect to the server; packets are
+		// already coalesced into batches, so they should not be delayed
 		try 
-		{ socket = new Socket(addr, port); }
+		{
+			channel = SocketChannel.open(new InetSocketAddress(addr, port));
+			channel.socket().setTcpNoDelay(true);
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
@@ -49,13 +131,12 @@ public class VNSComm
 		// Send VNS_OPEN message to server
 		CommandOpen cmdOpen = new CommandOpen();
 		cmdOpen.mVirtualHostId = this.device.getHost();
-		byte[] buf = cmdOpen.serialize();
+		ByteBuffer buf = ByteBuffer.wrap(cmdOpen.serialize());
 		
 		try
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-			outStream.flush();
+			while (buf.hasRemaining())
+			{ channel.write(buf); }
 		}
 		catch(IOException e)
 		{
@@ -91,6 +172,20 @@ public class VNSComm
 			}
 		}
 		
+		// Name the interfaces as packet commands do
+		int count = this.device.getInterfaces().size();
+		this.ifaces = new Iface[count];
+		this.ifaceNames = new byte[count][];
+		int i = 0;
+		for (Iface iface : this.device.getInterfaces().values())
+		{
+			byte[] name = Arrays.copyOf(iface.getName().getBytes(), 
+					IFACE_NAME_LEN);
+			this.ifaces[i] = iface;
+			this.ifaceNames[i++] = name;
+			this.ifaceNamesByName.put(iface.getName(), name);
+		}
+		
 		System.out.println("Device interfaces:");
 		if (0 == this.device.getInterfaces().size())
 		{ System.out.println(" Interface list empty"); }
@@ -106,75 +201,119 @@ public class VNSComm
 	public boolean readFromServer()
 	{ return this.readFromServerExpect(0); }
 	
+	/**
+	 * Handles the next command from the server, and every other command that
+	 * arrived with it. Packets sent while handling these commands are written
+	 * to the server together once all of them have been handled.
+	 * @param expectedCmd command the next one must be, or 0 for any; only
+	 *        the next command is handled when a command is expected
+	 * @return false if the connection failed or a command was unexpected
+	 */
 	public boolean readFromServerExpect(int expectedCmd)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
+		boolean batch = (0 == expectedCmd);
+		if (batch)
+		{ this.batchThread = Thread.currentThread(); }
 		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
+		try
 		{
-			e.printStackTrace();
-			return false;
+			boolean ok = this.handleCommand(expectedCmd);
+			while (ok && batch && this.commandBuffered())
+			{ ok = this.handleCommand(0); }
+			return ok;
 		}
-		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
+		finally
 		{
-			try 
-			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
+			if (batch)
 			{
-				e.printStackTrace();
-				return false;
+				this.batchThread = null;
+				this.writeBatch();
+				this.flush();
 			}
 		}
+	}
+	
+	/**
+	 * Reads from the server until the read buffer holds at least the given
+	 * number of bytes. Each read takes as much as the server has sent.
+	 * @param needed number of bytes the buffer must hold
+	 * @throws IOException if the connection failed or was closed
+	 */
+	private void fillReadBuffer(int needed) throws IOException
+	{
+		while (this.readBuffer.remaining() < needed)
+		{
+			this.readBuffer.compact();
+			int ret = this.channel.read(this.readBuffer);
+			this.readBuffer.flip();
+			this.reads.increment();
+			if (ret < 0)
+			{ throw new EOFException(); }
+		}
+	}
+	
+	/**
+	 * Checks if the next command can be handled without reading from the
+	 * server.
+	 * @return true if the read buffer holds the whole next command, or enough
+	 *         of it to tell its length is invalid
+	 */
+	private boolean commandBuffered()
+	{
+		if (this.readBuffer.remaining() < 4)
+		{ return false; }
+		int len = this.readBuffer.getInt(this.readBuffer.position());
+		return (len > MAX_COMMAND_LEN || len < 8 
+				|| this.readBuffer.remaining() >= len);
+	}
+	
+	/**
+	 * Handles the next command from the server, reading from the server if
+	 * the read buffer does not hold all of it yet.
+	 * @param expectedCmd command the next one must be, or 0 for any
+	 * @return false if the connection failed or the command was unexpected
+	 */
+	private boolean handleCommand(int expectedCmd)
+	{
+		// Attempt to read the size of the incoming command
+		try 
+		{ this.fillReadBuffer(4); }
+		catch (IOException e) 
+		{
+			e.printStackTrace();
+			return false;
+		}
 		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
+		int len = this.readBuffer.getInt(this.readBuffer.position());
 		
-		if (len > 10000 || len < 0)
+		if (len > MAX_COMMAND_LEN || len < 8)
 		{
 			System.err.println(String.format(
-					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
+					"Error: invalid command length %d", len));
+			try { channel.close(); } catch (IOException e) { }
 			return false;
 		}
 		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
 		// Read the rest of the command
-		while (bytesRead < len)
+		try 
+		{ this.fillReadBuffer(len); }
+		catch (IOException e) 
 		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
-			}
+			e.printStackTrace();
+			System.err.println("Error: failed reading command body");
+			try { channel.close(); } catch (IOException e2) { }
+			return false;
 		}
 		
+		// Copy the command out of the read buffer, since the packet parsers
+		// need an array
+		this.readBuffer.get(this.command, 0, len);
+		ByteBuffer buf = this.commandBuffer;
+		buf.clear();
+		buf.limit(len);
+		
 		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
+		int command = buf.getInt(4);
 		if (expectedCmd != 0 && command != expectedCmd)
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
@@ -186,20 +325,37 @@ public class VNSComm
 			}
 		}
 		
-		buf.position(0);
 		switch(command)
 		{
 		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
+			this.rxPackets.increment();
+			this.rxBytes.add(len - PACKET_HEADER_LEN);
 			
-			// Log packet
+			// Log packet from the bytes already read
 			if (this.device.getLogFile() != null)
-			{ this.device.getLogFile().dump(cmdPkt.etherPacket); }
+			{
+				this.device.getLogFile().dump(this.command, PACKET_HEADER_LEN,
+						len - PACKET_HEADER_LEN);
+			}
+			
+			// Decide once whether the frame is traced, as the decision counts
+			// against the trace rate limit; traced frames are parsed to be
+			// printed
+			boolean traced = Tracer.shouldTrace(Tracer.Level.DEBUG);
+			
+			// Let the device handle the frame from its bytes if it can, and
+			// otherwise parse it
+			if (!traced && this.device.receiveFrame(this.command, 
+					PACKET_HEADER_LEN, len - PACKET_HEADER_LEN, 
+					this.findInterface(this.command, 8)))
+			{ break; }
+			
+			CommandPacket cmdPkt = new CommandPacket();
+			cmdPkt.deserialize(buf);
 			
 			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+			this.device.receivePacket(cmdPkt.etherPacket, 
+					this.device.getInterface(cmdPkt.mInterfaceName), traced);
 			break;
 			
 		case Command.VNS_CLOSE:
@@ -223,6 +379,23 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * Finds the interface named in a packet command.
+	 * @param buf buffer holding the command
+	 * @param offset offset of the interface name in the buffer
+	 * @return the named interface; null if the device has no such interface
+	 */
+	private Iface findInterface(byte[] buf, int offset)
+	{
+		for (int i = 0; i < this.ifaceNames.length; i++)
+		{
+			if (Arrays.equals(this.ifaceNames[i], 0, IFACE_NAME_LEN, 
+					buf, offset, offset + IFACE_NAME_LEN))
+			{ return this.ifaces[i]; }
+		}
+		return null;
+	}
+	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
 	{
@@ -256,21 +429,165 @@ public class VNSComm
 			return false;
 		}*/
 		
-		// Log packet
+		// Log packet from the bytes about to be sent
 		if (this.device.getLogFile() != null)
-		{ this.device.getLogFile().dump(etherPacket); }
+		{
+			this.device.getLogFile().dump(buf, cmdPacket.getSize(),
+					buf.length - cmdPacket.getSize());
+		}
 		
-		try
+		// Queue packet, and write it right away unless it belongs to a batch
+		if (!this.channel.isOpen())
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-			outStream.flush();
+			System.err.println("Error writing packet");
+			return false;
 		}
-		catch(IOException e)
+		this.txPackets.increment();
+		this.txBytes.add(buf.length - cmdPacket.getSize());
+		if (Thread.currentThread() == this.batchThread 
+				&& buf.length <= this.batchBuffer.capacity())
+		{
+			if (buf.length > this.batchBuffer.remaining() && !this.writeBatch())
+			{ return false; }
+			this.batchBuffer.put(buf);
+			return true;
+		}
+		this.outQueue.add(ByteBuffer.wrap(buf));
+		if (Thread.currentThread() != this.batchThread)
+		{ return this.flush(); }
+		return true;
+	}
+	
+	/**
+	 * Send a serialized Ethernet frame out an interface. On the thread
+	 * handling a batch of commands, the frame is copied straight into the
+	 * batch, so sending it allocates nothing.
+	 * @param frame buffer holding the frame
+	 * @param offset offset of the frame in the buffer
+	 * @param length length of the frame
+	 * @param ifaceName name of the interface to send the frame out
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, 
+			String ifaceName)
+	{
+		byte[] name = this.ifaceNamesByName.get(ifaceName);
+		int size = PACKET_HEADER_LEN + length;
+		if (null == name)
+		{ name = Arrays.copyOf(ifaceName.getBytes(), IFACE_NAME_LEN); }
+		
+		// Log packet from the bytes about to be sent
+		if (this.device.getLogFile() != null)
+		{ this.device.getLogFile().dump(frame, offset, length); }
+		
+		if (!this.channel.isOpen())
 		{
 			System.err.println("Error writing packet");
 			return false;
 		}
+		this.txPackets.increment();
+		this.txBytes.add(length);
+		
+		ByteBuffer out;
+		boolean batch = (Thread.currentThread() == this.batchThread 
+				&& size <= this.batchBuffer.capacity());
+		if (batch)
+		{
+			if (size > this.batchBuffer.remaining() && !this.writeBatch())
+			{ return false; }
+			out = this.batchBuffer;
+		}
+		else
+		{ out = ByteBuffer.allocate(size); }
+		
+		out.putInt(size);
+		out.putInt(Command.VNS_PACKET);
+		out.put(name, 0, IFACE_NAME_LEN);
+		out.put(frame, offset, length);
+		if (batch)
+		{ return true; }
+		
+		out.flip();
+		this.outQueue.add(out);
+		if (Thread.currentThread() != this.batchThread)
+		{ return this.flush(); }
 		return true;
 	}
+	
+	/**
+	 * Writes the packets sent so far by the batch thread to the server,
+	 * waiting for any other thread writing to the server first.
+	 * @return false if a write failed
+	 */
+	private boolean writeBatch()
+	{
+		if (0 == this.batchBuffer.position())
+		{ return true; }
+		
+		boolean ok = true;
+		this.batchBuffer.flip();
+		this.writeLock.lock();
+		try
+		{
+			while (this.batchBuffer.hasRemaining())
+			{
+				this.channel.write(this.batchBuffer);
+				this.writes.increment();
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error writing packet");
+			ok = false;
+		}
+		finally
+		{
+			this.writeLock.unlock();
+			this.batchBuffer.clear();
+		}
+		return ok;
+	}
+	
+	/**
+	 * Writes all queued packets to the server, up to MAX_GATHER of them with
+	 * each write. If another thread is already writing, the packets are left
+	 * for that thread, which checks the queue again when it is done.
+	 * @return false if a write failed
+	 */
+	private boolean flush()
+	{
+		boolean ok = true;
+		while (!this.outQueue.isEmpty() && this.writeLock.tryLock())
+		{
+			try
+			{
+				int count = 0;
+				ByteBuffer pkt;
+				while (count < MAX_GATHER 
+						&& (pkt = this.outQueue.poll()) != null)
+				{ this.gather[count++] = pkt; }
+				if (0 == count)
+				{ continue; }
+				
+				try
+				{
+					while (this.gather[count - 1].hasRemaining())
+					{
+						this.channel.write(this.gather, 0, count);
+						this.writes.increment();
+					}
+				}
+				catch(IOException e)
+				{
+					System.err.println("Error writing packet");
+					this.outQueue.clear();
+					ok = false;
+				}
+				Arrays.fill(this.gather, 0, count, null);
+			}
+			finally
+			{ this.writeLock.unlock(); }
+		}
+		return ok;
+	}
 }
@@ -91,6 +91,14 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param destinationMAC the destination MAC to set
+     */
+    public Ethernet setDestinationMAC(MACAddress destinationMAC) {
+        this.destinationMACAddress = destinationMAC;
+        return this;
+    }
+
     /**
      * @return the source MACAddress as a byte array
      */
@@ -121,6 +129,14 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param sourceMAC the source MAC to set
+     */
+    public Ethernet setSourceMAC(MACAddress sourceMAC) {
+        this.sourceMACAddress = sourceMAC;
+        return this;
+    }
+
     /**
      * @return the priorityCode
      */
@@ -22,6 +22,11 @@ public class Metrics {
     /* Number of duplicate acknowledgements */
     public int duplicateAckCount;
 
+    /* Wall clock times the connection was established and closed at, in
+     * milliseconds since the epoch */
+    public long startTime;
+    public long endTime;
+
     /* Horizontal line for output isolation */
     private final static String HR;
 
@@ -45,6 +50,8 @@ public class Metrics {
         wrongChecksum = 0;
         retransmissionCount = 0;
         duplicateAckCount = 0;
+        startTime = 0;
+        endTime = 0;
     }
 
     @Override
@@ -58,4 +65,32 @@ public class Metrics {
             duplicateAckCount
         );
     }
+
+    /**
+     * Formats the metrics as a single JSON document
+     *
+     * @param config the configuration of the run
+     *
+     * @return the JSON document
+     */
+    public String toJson(Record config) {
+        // a run that was interrupted ends now
+        long end = endTime != 0 ? endTime : System.currentTimeMillis();
+        double seconds = (end - startTime) / 1e3;
+
+        return new JsonWriter().beginObject()
+            .field("config", config)
+            .field("start_ms", startTime != 0 ? startTime : null)
+            .field("end_ms", startTime != 0 ? end : null)
+            .field("bytes", dataTransferred)
+            .field("packets", packetsTransferred)
+            .field("out_of_sequence_discarded", packetsDiscarded)
+            .field("wrong_checksum", wrongChecksum)
+            .field("retransmissions", retransmissionCount)
+            .field("duplicate_acks", duplicateAckCount)
+            .field("mbps", startTime != 0 && seconds > 0
+                ? dataTransferred * 8 / seconds / 1e6 : null)
+            .endObject()
+            .toString();
+    }
 }
@@ -48,7 +48,8 @@ public class Recv implements IServer {
             public void run() {
                 if (socket != null && !socket.isClosed())
                     socket.close();
-                System.out.println(metrics);
+                System.out.println(config.json()
+                                   ? metrics.toJson(config) : metrics);
             }
         });
     }
@@ -141,6 +142,7 @@ public class Recv implements IServer {
                 socket.setSoTimeout(0);
                 seqNo++;
                 startTime = System.nanoTime();
+                metrics.startTime = System.currentTimeMillis();
                 metrics.retransmissionCount += i;
                 return;
             }
@@ -238,6 +240,8 @@ public class Recv implements IServer {
 
     @Override
     public void close() throws IOException {
+        metrics.endTime = System.currentTimeMillis();
+
         isConnected = false;
         worker.interrupt();
 
@@ -313,7 +317,8 @@ public class Recv implements IServer {
     }
 
     private final void log(String type, TCPPacket packet) {
-        System.out.printf(FORMAT,
+        // keep the console output a single document in JSON mode
+        (config.json() ? System.err : System.out).printf(FORMAT,
             type,
             (System.nanoTime() - startTime) / 1e6,
             packet.isSyn() ? "S" : "-",
@@ -2,5 +2,8 @@
  * @author Arushi Mishra
  *
  * A configuration record for server/receiver
+ * With json set, the metrics are printed as a single JSON document and
+ * the packet log goes to standard error
  */
-public record RecvConfig(int port, int mtu, int sws, String fileName) {}
+public record RecvConfig(int port, int mtu, int sws, String fileName,
+                         boolean json) {}
@@ -2,6 +2,8 @@
  * @author Mrigank Kumar
  *
  * A configuration record for client/sender
+ * With json set, the metrics are printed as a single JSON document and
+ * the packet log goes to standard error
  */
 public record SendConfig(int port, String remoteIP, int remotePort,
-                         String fileName, int mtu, int sws) {}
+                         String fileName, int mtu, int sws, boolean json) {}
@@ -269,7 +269,8 @@ public class Sender implements IClient {
             public void run() {
                 if (!socket.isClosed())
                     socket.close();
-                System.out.println(metrics);
+                System.out.println(config.json()
+                                   ? metrics.toJson(config) : metrics);
             }
         });
     }
@@ -337,6 +338,7 @@ public class Sender implements IClient {
             socket.setSoTimeout(0);
             seqNo++;
             startTime = System.nanoTime();
+            metrics.startTime = System.currentTimeMillis();
             metrics.retransmissionCount += 2 * i;
             return;
         }
@@ -395,6 +397,8 @@ public class Sender implements IClient {
     }
 
     public void close() throws IOException {
+        metrics.endTime = System.currentTimeMillis();
+
         TCPPacket pkt = new TCPPacket(seqNo++, lastSeqNo);
         pkt.setFlag(TCPFlag.FIN, true);
 
@@ -468,7 +472,8 @@ public class Sender implements IClient {
     }
 
     private final void log(String type, TCPPacket packet) {
-        System.out.printf(FORMAT,
+        // keep the console output a single document in JSON mode
+        (config.json() ? System.err : System.out).printf(FORMAT,
             type,
             (System.nanoTime() - startTime) / 1e6,
             packet.isSyn() ? "S" : "-",
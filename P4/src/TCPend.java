@@ -14,7 +14,8 @@ public final class TCPend {
               .addOption("-a", "int")
               .addOption("-f", "string")
               .addOption("-m", "int")
-              .addOption("-c", "int");
+              .addOption("-c", "int")
+              .addOption("-J", "boolean");
 
         parser.parse(args);
 
@@ -25,7 +26,8 @@ public final class TCPend {
                 parser.get("-p"),
                 parser.get("-m"),
                 parser.get("-c"),
-                parser.get("-f")
+                parser.get("-f"),
+                parser.get("-J")
             ));
         } else {
             runSender(new SendConfig(
@@ -34,10 +36,14 @@ public final class TCPend {
                 parser.get("-a"),
                 parser.get("-f"),
                 parser.get("-m"),
-                parser.get("-c")
+                parser.get("-c"),
+                parser.get("-J")
             ));
         }
-        System.out.println("Done!");
+
+        // the metrics document is the only console output in JSON mode
+        if (!parser.<Boolean>get("-J"))
+            System.out.println("Done!");
     }
 
     private final static void runReceiver(RecvConfig config) {